@@ -0,0 +1,24 @@
+package com.kawamix.combined.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * IDEからベンチマークを実行する (GCプロファイラで割り当て量も出力する)
+ * 引数を指定した場合は実行するベンチマーク名の正規表現として使う。
+ * @author kawami
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".")
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
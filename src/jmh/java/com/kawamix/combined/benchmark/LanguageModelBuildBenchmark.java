@@ -0,0 +1,55 @@
+package com.kawamix.combined.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kawamix.combined.ngrammodel.forsudachi.NgramLanguageModel;
+import com.kawamix.combined.ngrammodel.forsudachi.SudachiToken;
+import com.kawamix.combined.ngrammodel.forsudachi.Vocabulary;
+
+/**
+ * 形態素解析済みコーパスからの言語モデル作成 (1回 = コーパス全体の読み込み)
+ * @author kawami
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LanguageModelBuildBenchmark {
+	@Param({ "3" })
+	public int n;
+
+	@Param({ "10000" })
+	public int lines;
+
+	private Vocabulary vocabulary;
+	private List<SudachiToken[]> corpus;
+
+	@Setup
+	public void setup() {
+		this.vocabulary = new Vocabulary();
+		this.corpus = new SyntheticCorpus(vocabulary, 5000, 1L).sentences(lines);
+	}
+
+	@Benchmark
+	public NgramLanguageModel loadLines() {
+		NgramLanguageModel languageModel = new NgramLanguageModel(n, vocabulary);
+		languageModel.loadTokenizedLines(corpus);
+		return languageModel;
+	}
+}
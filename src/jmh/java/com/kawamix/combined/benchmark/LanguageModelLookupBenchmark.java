@@ -0,0 +1,79 @@
+package com.kawamix.combined.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kawamix.combined.ngrammodel.forsudachi.NgramLanguageModel;
+import com.kawamix.combined.ngrammodel.forsudachi.SudachiNode;
+import com.kawamix.combined.ngrammodel.forsudachi.SudachiNodeKey;
+import com.kawamix.combined.ngrammodel.forsudachi.Vocabulary;
+
+/**
+ * 後続ノードと文頭キーの検索
+ * @author kawami
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LanguageModelLookupBenchmark {
+	@Param({ "3" })
+	public int n;
+
+	@Param({ "20000" })
+	public int lines;
+
+	private NgramLanguageModel languageModel;
+	private SudachiNode[] probes;
+	private int cursor;
+
+	@Setup
+	public void setup() {
+		Vocabulary vocabulary = new Vocabulary();
+		this.languageModel = new NgramLanguageModel(n, vocabulary);
+		languageModel.loadTokenizedLines(new SyntheticCorpus(vocabulary, 5000, 1L).sentences(lines));
+
+		// 文頭から順にたどって検索に使うノードを集める
+		List<SudachiNode> nodes = new ArrayList<>();
+		for (Entry<SudachiNodeKey, List<SudachiNode>> head : languageModel.findHead()) {
+			for (SudachiNode node : head.getValue()) {
+				nodes.add(node);
+				List<SudachiNode> next = languageModel.findNextCandidates(node);
+				if (next != null)
+					nodes.addAll(next);
+			}
+			if (nodes.size() >= 4096)
+				break;
+		}
+		this.probes = nodes.toArray(new SudachiNode[0]);
+	}
+
+	@Benchmark
+	public List<SudachiNode> findNextCandidates() {
+		int index = cursor;
+		cursor = index + 1 == probes.length ? 0 : index + 1;
+		return languageModel.findNextCandidates(probes[index]);
+	}
+
+	@Benchmark
+	public List<Entry<SudachiNodeKey, List<SudachiNode>>> findHead() {
+		return languageModel.findHead(1);
+	}
+}
@@ -0,0 +1,66 @@
+package com.kawamix.combined.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kawamix.combined.ngrammodel.forsudachi.NgramLanguageModel;
+import com.kawamix.combined.ngrammodel.forsudachi.Vocabulary;
+
+/**
+ * 保存済みモデルファイルの読み込み (索引の作成まで含む)
+ * @author kawami
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelFileLoadBenchmark {
+	@Param({ "3" })
+	public int n;
+
+	@Param({ "20000" })
+	public int lines;
+
+	private Path modelPath;
+
+	@Setup
+	public void setup() throws IOException {
+		Vocabulary vocabulary = new Vocabulary();
+		NgramLanguageModel languageModel = new NgramLanguageModel(n, vocabulary);
+		languageModel.loadTokenizedLines(new SyntheticCorpus(vocabulary, 5000, 1L).sentences(lines));
+		this.modelPath = Files.createTempFile("ngram", ".model");
+		languageModel.save(modelPath.toString());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(modelPath);
+	}
+
+	@Benchmark
+	public NgramLanguageModel loadSerializedFile() {
+		// 読み込み先の語彙は毎回新しくする (語彙の登録も計測に含める)
+		NgramLanguageModel languageModel = new NgramLanguageModel(n, new Vocabulary());
+		if (!languageModel.loadSerializedFile(modelPath.toString()))
+			throw new IllegalStateException("failed to load " + modelPath);
+		return languageModel;
+	}
+}
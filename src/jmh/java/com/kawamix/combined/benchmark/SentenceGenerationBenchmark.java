@@ -0,0 +1,70 @@
+package com.kawamix.combined.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kawamix.combined.ngrammodel.forsudachi.NgramLanguageModel;
+import com.kawamix.combined.ngrammodel.forsudachi.NgramSentenceGenerator;
+import com.kawamix.combined.ngrammodel.forsudachi.NgramSentenceGenerator.GENERATEMODE;
+import com.kawamix.combined.ngrammodel.forsudachi.Vocabulary;
+
+/**
+ * 発話生成 (generateText) の1回あたりの時間
+ * 特徴言語モデルと、類似文から作る汎用言語モデル相当の小さいモデルを使う。Word2Vecは使わない(置換処理は行われない)。
+ * @author kawami
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SentenceGenerationBenchmark {
+	@Param({ "3" })
+	public int n;
+
+	@Param({ "5000" })
+	public int featuredLines;
+
+	@Param({ "2000" })
+	public int generalLines;
+
+	private NgramSentenceGenerator sentenceGenerator;
+	private NgramLanguageModel generalLanguageModel;
+
+	@Setup
+	public void setup() {
+		// 特徴言語モデルと汎用言語モデルは同じ語彙を共有する
+		Vocabulary vocabulary = new Vocabulary();
+		SyntheticCorpus corpus = new SyntheticCorpus(vocabulary, 3000, 1L);
+		NgramLanguageModel featuredLanguageModel = new NgramLanguageModel(n, vocabulary);
+		featuredLanguageModel.loadTokenizedLines(corpus.sentences(featuredLines));
+		this.generalLanguageModel = new NgramLanguageModel(n, vocabulary);
+		generalLanguageModel.loadTokenizedLines(corpus.sentences(generalLines));
+		this.sentenceGenerator = new NgramSentenceGenerator(n, featuredLanguageModel, null, null);
+		// 初回だけ作られる索引は計測に含めない
+		sentenceGenerator.generateText(generalLanguageModel, GENERATEMODE.CHAT);
+	}
+
+	@Benchmark
+	public String generateTextChat() {
+		return sentenceGenerator.generateText(generalLanguageModel, GENERATEMODE.CHAT);
+	}
+
+	@Benchmark
+	public String generateTextCharacterize() {
+		return sentenceGenerator.generateText(generalLanguageModel, GENERATEMODE.CHARACTERIZE);
+	}
+}
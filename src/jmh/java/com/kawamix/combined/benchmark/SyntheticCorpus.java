@@ -0,0 +1,59 @@
+package com.kawamix.combined.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.kawamix.combined.ngrammodel.forsudachi.SudachiToken;
+import com.kawamix.combined.ngrammodel.forsudachi.Vocabulary;
+
+/**
+ * ベンチマーク用の形態素解析済み合成コーパス
+ * Sudachiの辞書を使わずに、語彙に直接internしたトークン列を作る。
+ * 出現頻度は偏らせる (先頭の語ほど多く出る)。
+ * @author kawami
+ *
+ */
+public class SyntheticCorpus {
+	private static final List<List<String>> PART_OF_SPEECH = Arrays.asList(
+			Arrays.asList("名詞", "普通名詞", "一般", "*", "*", "*"),
+			Arrays.asList("名詞", "固有名詞", "人名", "一般", "*", "*"),
+			Arrays.asList("動詞", "一般", "*", "*", "五段-ラ行", "連用形-一般"),
+			Arrays.asList("動詞", "一般", "*", "*", "五段-ラ行", "終止形-一般"),
+			Arrays.asList("形容詞", "一般", "*", "*", "形容詞", "終止形-一般"),
+			Arrays.asList("助詞", "格助詞", "*", "*", "*", "*"),
+			Arrays.asList("助詞", "係助詞", "*", "*", "*", "*"),
+			Arrays.asList("助動詞", "*", "*", "*", "助動詞-デス", "終止形-一般"));
+
+	private final SudachiToken[] words;
+	private final Random random;
+
+	/**
+	 * @param vocabularySize 語彙数
+	 * @param seed 同じ値なら同じコーパスになる
+	 */
+	public SyntheticCorpus(Vocabulary vocabulary, int vocabularySize, long seed) {
+		this.words = new SudachiToken[vocabularySize];
+		for (int i = 0; i < vocabularySize; i++) {
+			this.words[i] = vocabulary.intern("語" + i, PART_OF_SPEECH.get(i % PART_OF_SPEECH.size()));
+		}
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @param size 文の数 (1文5〜20形態素)
+	 */
+	public List<SudachiToken[]> sentences(int size) {
+		List<SudachiToken[]> sentences = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			SudachiToken[] sentence = new SudachiToken[5 + random.nextInt(16)];
+			for (int j = 0; j < sentence.length; j++) {
+				double r = random.nextDouble();
+				sentence[j] = words[(int) (words.length * r * r)];
+			}
+			sentences.add(sentence);
+		}
+		return sentences;
+	}
+}
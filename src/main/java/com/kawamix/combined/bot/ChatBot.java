@@ -3,7 +3,7 @@ package com.kawamix.combined.bot;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.nio.file.Paths;
 import java.util.List;
 
 import org.slf4j.LoggerFactory;
@@ -16,24 +16,34 @@ import ch.qos.logback.classic.LoggerContext;
 
 public class ChatBot {
 
+	/**
+	 * 標準入力から1行ずつ読み、候補文を出力する
+	 * @param args [設定ファイル] (ChatBotConfig)
+	 */
 	public static void main(String[] args) {
 		LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
 		Logger rootLogger = loggerContext.getLogger("org.mongodb.driver");
 		rootLogger.setLevel(Level.WARN);
 
-		String rootDirectoryPathOfFeaturedTexts = "./resources/haruka.txt";
-		String word2VecModelPath = "./data/word2vecModel_sudachi.txt";
-		String allDocumentsPath = "./data/allDocuments.srl";
-		String seq2VecPath = "./data/seq2vec.srl";
-		String featuredLanguageModelPath = "./data/featuredLM_sudachi.srl";
-		String stopWordsPath = "./resources/stopWords.txt";
-		int n = 3;
+		ChatBotConfig config;
+		try {
+			config = ChatBotConfig.load(args.length > 0 ? Paths.get(args[0]) : null);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
 
 		SudachiTokenizer sudachiTokenizer = new SudachiTokenizer();
 
-		SudachiChatController chatController = new SudachiChatController(n, rootDirectoryPathOfFeaturedTexts,
-				word2VecModelPath, allDocumentsPath, seq2VecPath,
-				featuredLanguageModelPath, stopWordsPath);
+		SudachiChatController chatController = new SudachiChatController(config.getN(),
+				config.getFeaturedTextsPath(), config.getWord2VecModelPath(), config.getAllDocumentsPath(),
+				config.getSeq2VecPath(), config.getFeaturedLanguageModelPath(), config.getStopWordsPath());
+		chatController.setTokenizationCacheSize(config.getTokenizationCacheSize());
+		chatController.setFeaturedModelOffHeap(config.isFeaturedModelOffHeap());
+		chatController.setGeneratorThreads(config.getGeneratorThreads());
+		chatController.setBeamWidth(config.getBeamWidth());
+		chatController.setTimeoutMillis(config.getTimeoutMillis());
+		chatController.setCompactionOptions(config.getCompactionOptions());
 		try {
 			chatController.initialize(sudachiTokenizer);
 		} catch (IOException e) {
@@ -47,7 +57,7 @@ public class ChatBot {
 			while (null != (line = br.readLine())) {
 				//				String next = chatController.nextText(line);
 				//				String next = chatController.characterizeText(line);
-				List<String> nextList = chatController.nextTexts(line, 10);
+				List<String> nextList = chatController.nextTexts(line, config.getCandidates());
 				for (String next : nextList) {
 					System.out.println("INPUT> " + line);
 					//				System.out.println("OUTPUT> " + chatController.characterizeText(line));
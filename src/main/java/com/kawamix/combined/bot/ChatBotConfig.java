@@ -0,0 +1,165 @@
+package com.kawamix.combined.bot;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import com.kawamix.combined.ngrammodel.forsudachi.CompactionOptions;
+
+/**
+ * ChatBot / ChatServer の設定 (プロパティファイル)
+ * ファイルにない項目は既定値を使う。設定例は resources/chatbot.properties
+ * @author kawami
+ *
+ */
+public class ChatBotConfig {
+	private final Properties properties;
+
+	public ChatBotConfig() {
+		this(new Properties());
+	}
+
+	public ChatBotConfig(Properties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * @param path nullの場合はすべて既定値
+	 */
+	public static ChatBotConfig load(Path path) throws IOException {
+		Properties properties = new Properties();
+		if (path != null) {
+			try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+				properties.load(reader);
+			}
+		}
+		return new ChatBotConfig(properties);
+	}
+
+	public int getN() {
+		return getInt("ngram.n", 3);
+	}
+
+	public String getFeaturedTextsPath() {
+		return properties.getProperty("path.featuredTexts", "./resources/haruka.txt");
+	}
+
+	public String getWord2VecModelPath() {
+		return properties.getProperty("path.word2vecModel", "./data/word2vecModel_sudachi.txt");
+	}
+
+	public String getAllDocumentsPath() {
+		return properties.getProperty("path.allDocuments", "./data/allDocuments.srl");
+	}
+
+	public String getSeq2VecPath() {
+		return properties.getProperty("path.seq2vec", "./data/seq2vec.srl");
+	}
+
+	public String getFeaturedLanguageModelPath() {
+		return properties.getProperty("path.featuredModel", "./data/featuredLM_sudachi.srl");
+	}
+
+	public String getStopWordsPath() {
+		return properties.getProperty("path.stopWords", "./resources/stopWords.txt");
+	}
+
+	/**
+	 * 1回の発話で生成する候補文の数
+	 */
+	public int getCandidates() {
+		return getInt("chat.candidates", 10);
+	}
+
+	/**
+	 * 同時に使う形態素解析器の最大数 (既定はCPUコア数)
+	 */
+	public int getTokenizerPoolSize() {
+		return getInt("chat.tokenizers", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * 形態素解析結果をキャッシュする件数
+	 */
+	public int getTokenizationCacheSize() {
+		return getInt("chat.tokenizationCacheSize", 10000);
+	}
+
+	/**
+	 * 候補文を並列に生成するスレッド数
+	 */
+	public int getGeneratorThreads() {
+		return getInt("chat.generatorThreads", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * 候補文をビームサーチで生成する場合のビーム幅 (0ならランダムウォーク)
+	 */
+	public int getBeamWidth() {
+		return getInt("chat.beamWidth", 0);
+	}
+
+	/**
+	 * 1回の発話の生成にかける時間の上限 (ミリ秒。0なら制限なし)
+	 */
+	public long getTimeoutMillis() {
+		return Long.parseLong(properties.getProperty("chat.timeoutMillis", "0").trim());
+	}
+
+	/**
+	 * 特徴言語モデルの圧縮条件。compaction.* がどれも設定されていなければnull (圧縮しない)
+	 */
+	public CompactionOptions getCompactionOptions() {
+		if (properties.getProperty("compaction.minCount") == null && properties.getProperty("compaction.topK") == null
+				&& properties.getProperty("compaction.maxBytes") == null)
+			return null;
+		return new CompactionOptions()
+				.setMinCount(getInt("compaction.minCount", 1))
+				.setTopK(getInt("compaction.topK", 0))
+				.setMaxBytes(Long.parseLong(properties.getProperty("compaction.maxBytes", "0").trim()));
+	}
+
+	/**
+	 * 特徴言語モデルをヒープに読み込まず、ファイルをメモリマップして使う
+	 */
+	public boolean isFeaturedModelOffHeap() {
+		return Boolean.parseBoolean(properties.getProperty("featured.offHeap", "false").trim());
+	}
+
+	public int getPort() {
+		return getInt("server.port", 8080);
+	}
+
+	/**
+	 * 同時に処理するリクエストの上限 (超えた分はqueueTimeoutMillisまで待ち、それでも空かなければ503を返す)
+	 */
+	public int getMaxConcurrentRequests() {
+		return getInt("server.maxConcurrentRequests", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * POST /featured (特徴言語モデルへの追加) を有効にする。既定は無効
+	 */
+	public boolean isFeaturedEndpointEnabled() {
+		return Boolean.parseBoolean(properties.getProperty("server.featuredEndpoint", "false").trim());
+	}
+
+	/**
+	 * POST /featured をループバックアドレスからのリクエストに限る。既定はtrue
+	 */
+	public boolean isFeaturedEndpointLoopbackOnly() {
+		return Boolean.parseBoolean(properties.getProperty("server.featuredEndpoint.loopbackOnly", "true").trim());
+	}
+
+	public long getQueueTimeoutMillis() {
+		return Long.parseLong(properties.getProperty("server.queueTimeoutMillis", "1000").trim());
+	}
+
+	private int getInt(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+}
@@ -0,0 +1,394 @@
+package com.kawamix.combined.bot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.LoggerFactory;
+
+import com.kawamix.combined.metrics.LatencyHistogram;
+import com.kawamix.combined.metrics.SimpleCounter;
+import com.kawamix.combined.metrics.SimpleMetricsRegistry;
+import com.kawamix.sudachi.SudachiTokenizer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+
+/**
+ * HTTPで発話生成を提供する常駐サーバ
+ * <pre>
+ * POST /chat?num=10&amp;seed=1   本文(UTF-8)に発話を入れる。GETの場合は ?text=
+ *   -&gt; {"texts":["...", ...]}
+ * POST /featured   本文の各行を特徴言語モデルに追加する (追記ログに残り、再起動後も有効)
+ *   server.featuredEndpoint=true の場合だけ有効。既定ではローカルホストからのリクエストだけ受け付ける
+ * GET /ready   モデルの読み込みが終わっていれば200、それまでは503
+ * GET /stats   処理数・キャッシュ・各段階の処理時間など
+ * </pre>
+ * モデルは起動時に1回だけ読み込み、全リクエストで共有する。
+ * 同時に処理するリクエスト数には上限があり、空きを待ちきれなかったリクエストには503を返す。
+ * @author kawami
+ *
+ */
+public class ChatServer {
+	private final ChatBotConfig config;
+	private final SudachiChatController chatController;
+	private final SimpleMetricsRegistry metricsRegistry = new SimpleMetricsRegistry();
+	private final int maxConcurrentRequests;
+	private final Semaphore permits;
+
+	private final AtomicLong servedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private volatile boolean ready;
+
+	private HttpServer server;
+	private ExecutorService requestExecutor;
+
+	public ChatServer(ChatBotConfig config) {
+		this.config = config;
+		this.maxConcurrentRequests = Math.max(1, config.getMaxConcurrentRequests());
+		this.permits = new Semaphore(maxConcurrentRequests);
+		this.chatController = new SudachiChatController(config.getN(), config.getFeaturedTextsPath(),
+				config.getWord2VecModelPath(), config.getAllDocumentsPath(), config.getSeq2VecPath(),
+				config.getFeaturedLanguageModelPath(), config.getStopWordsPath());
+		this.chatController.setMetricsRegistry(metricsRegistry);
+		this.chatController.setTokenizerPool(config.getTokenizerPoolSize(), SudachiTokenizer::new);
+		this.chatController.setTokenizationCacheSize(config.getTokenizationCacheSize());
+		this.chatController.setFeaturedModelOffHeap(config.isFeaturedModelOffHeap());
+		this.chatController.setGeneratorThreads(config.getGeneratorThreads());
+		this.chatController.setBeamWidth(config.getBeamWidth());
+		this.chatController.setTimeoutMillis(config.getTimeoutMillis());
+		this.chatController.setCompactionOptions(config.getCompactionOptions());
+	}
+
+	/**
+	 * 待ち受けを開始する (モデルの読み込みはinitializeで行い、それまで/readyは503を返す)
+	 */
+	public void start() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(config.getPort()), 0);
+		this.server.createContext("/chat", this::handleChat);
+		if (config.isFeaturedEndpointEnabled())
+			this.server.createContext("/featured", this::handleFeatured);
+		this.server.createContext("/ready", this::handleReady);
+		this.server.createContext("/stats", this::handleStats);
+		this.requestExecutor = createRequestExecutor();
+		this.server.setExecutor(requestExecutor);
+		this.server.start();
+	}
+
+	/**
+	 * 特徴言語モデル・Word2Vecモデルなどを読み込む
+	 */
+	public void initialize() throws IOException {
+		chatController.initialize();
+		this.ready = true;
+	}
+
+	public void stop(int delaySeconds) {
+		this.ready = false;
+		this.server.stop(delaySeconds);
+		this.requestExecutor.shutdown();
+	}
+
+	public boolean isReady() {
+		return this.ready;
+	}
+
+	/**
+	 * リクエストごとに仮想スレッドを使う (Java 21以降)。
+	 * Java 8でもビルドできるようにリフレクションで呼び、使えない場合は通常のスレッドプールにする。
+	 */
+	private static ExecutorService createRequestExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	private void handleChat(HttpExchange exchange) throws IOException {
+		try {
+			if (!ready) {
+				send(exchange, 503, "{\"error\":\"not ready\"}");
+				return;
+			}
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			String text = "POST".equalsIgnoreCase(exchange.getRequestMethod())
+					? readBody(exchange.getRequestBody())
+					: query.get("text");
+			if (text == null || text.trim().isEmpty()) {
+				send(exchange, 400, "{\"error\":\"text is empty\"}");
+				return;
+			}
+			int num = parseInt(query.get("num"), config.getCandidates());
+			if (num < 1) {
+				send(exchange, 400, "{\"error\":\"num must be positive\"}");
+				return;
+			}
+			num = Math.min(num, config.getCandidates());
+			Long seed = null;
+			if (query.get("seed") != null) {
+				try {
+					seed = Long.parseLong(query.get("seed").trim());
+				} catch (NumberFormatException e) {
+					send(exchange, 400, "{\"error\":\"seed must be an integer\"}");
+					return;
+				}
+			}
+
+			// 同時処理数の上限 (空きを待ちきれなければ503)
+			if (!permits.tryAcquire(config.getQueueTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+				rejectedCount.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				send(exchange, 503, "{\"error\":\"busy\"}");
+				return;
+			}
+			List<String> texts;
+			try {
+				texts = seed == null ? chatController.nextTexts(text.trim(), num)
+						: chatController.nextTexts(text.trim(), num, seed);
+			} finally {
+				permits.release();
+			}
+			servedCount.incrementAndGet();
+			StringBuilder sb = new StringBuilder("{\"texts\":[");
+			for (int i = 0; i < texts.size(); i++) {
+				if (i > 0)
+					sb.append(',');
+				appendString(sb, texts.get(i));
+			}
+			sb.append("]}");
+			send(exchange, 200, sb.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			send(exchange, 503, "{\"error\":\"interrupted\"}");
+		} catch (RuntimeException e) {
+			failedCount.incrementAndGet();
+			e.printStackTrace();
+			send(exchange, 500, "{\"error\":\"internal error\"}");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * POST /featured: 本文の各行を特徴言語モデルに追加する
+	 * 特徴言語モデルを恒久的に書き換えるため、既定ではループバックアドレスからのリクエストだけ受け付ける。
+	 */
+	private void handleFeatured(HttpExchange exchange) throws IOException {
+		try {
+			if (config.isFeaturedEndpointLoopbackOnly()
+					&& !exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+				send(exchange, 403, "{\"error\":\"forbidden\"}");
+				return;
+			}
+			if (!ready) {
+				send(exchange, 503, "{\"error\":\"not ready\"}");
+				return;
+			}
+			if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+				send(exchange, 405, "{\"error\":\"POST only\"}");
+				return;
+			}
+			List<String> lines = Arrays.asList(readBody(exchange.getRequestBody()).split("\r?\n"));
+			// /chatと同じ同時処理数の上限に含める
+			if (!permits.tryAcquire(config.getQueueTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+				rejectedCount.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				send(exchange, 503, "{\"error\":\"busy\"}");
+				return;
+			}
+			try {
+				chatController.addFeaturedLines(lines);
+			} finally {
+				permits.release();
+			}
+			send(exchange, 200, "{\"lines\":" + lines.size() + "}");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			send(exchange, 503, "{\"error\":\"interrupted\"}");
+		} catch (IOException e) {
+			// 本文の読み込みか追記ログの書き込みに失敗した
+			failedCount.incrementAndGet();
+			e.printStackTrace();
+			send(exchange, 500, "{\"error\":\"io error\"}");
+		} catch (RuntimeException e) {
+			failedCount.incrementAndGet();
+			e.printStackTrace();
+			send(exchange, 500, "{\"error\":\"internal error\"}");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleReady(HttpExchange exchange) throws IOException {
+		try {
+			if (ready)
+				send(exchange, 200, "{\"ready\":true}");
+			else
+				send(exchange, 503, "{\"ready\":false}");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleStats(HttpExchange exchange) throws IOException {
+		try {
+			StringBuilder sb = new StringBuilder("{");
+			sb.append("\"ready\":").append(ready);
+			sb.append(",\"inFlight\":").append(maxConcurrentRequests - permits.availablePermits());
+			sb.append(",\"served\":").append(servedCount.get());
+			sb.append(",\"rejected\":").append(rejectedCount.get());
+			sb.append(",\"failed\":").append(failedCount.get());
+			GeneralModelCache cache = chatController.getGeneralModelCache();
+			sb.append(",\"generalModelCache\":{\"size\":").append(cache.size());
+			sb.append(",\"bytes\":").append(cache.getEstimatedBytes());
+			sb.append(",\"hitRate\":").append(cache.getHitRate()).append('}');
+			sb.append(",\"timers\":{");
+			boolean first = true;
+			for (LatencyHistogram timer : metricsRegistry.getTimers()) {
+				if (!first)
+					sb.append(',');
+				first = false;
+				appendString(sb, timer.getName());
+				sb.append(":{\"count\":").append(timer.getCount());
+				sb.append(",\"meanMs\":").append(timer.getMeanNanos() / 1e6);
+				sb.append(",\"p50Ms\":").append(timer.getPercentileNanos(0.5) / 1e6);
+				sb.append(",\"p99Ms\":").append(timer.getPercentileNanos(0.99) / 1e6);
+				sb.append(",\"maxMs\":").append(timer.getMaxNanos() / 1e6).append('}');
+			}
+			sb.append("},\"counters\":{");
+			first = true;
+			for (SimpleCounter counter : metricsRegistry.getCounters()) {
+				if (!first)
+					sb.append(',');
+				first = false;
+				appendString(sb, counter.getName());
+				sb.append(':').append(counter.getCount());
+			}
+			sb.append("}}");
+			send(exchange, 200, sb.toString());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> query = new HashMap<>();
+		if (rawQuery == null)
+			return query;
+		for (String pair : rawQuery.split("&")) {
+			int index = pair.indexOf('=');
+			if (index < 0)
+				continue;
+			query.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"),
+					URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+		}
+		return query;
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static void appendString(StringBuilder sb, String value) {
+		if (value == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * @param args [設定ファイル]
+	 */
+	public static void main(String[] args) throws IOException {
+		LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
+		Logger rootLogger = loggerContext.getLogger("org.mongodb.driver");
+		rootLogger.setLevel(Level.WARN);
+
+		ChatBotConfig config = ChatBotConfig.load(args.length > 0 ? Paths.get(args[0]) : null);
+		ChatServer chatServer = new ChatServer(config);
+		chatServer.start();
+		System.out.println("listening on port " + config.getPort() + ", loading models...");
+		try {
+			chatServer.initialize();
+		} catch (IOException | RuntimeException e) {
+			// 読み込みに失敗したら待ち受けも止める (/readyが503のまま残らないように)
+			chatServer.stop(0);
+			throw e;
+		}
+		System.out.println("ready.");
+	}
+}
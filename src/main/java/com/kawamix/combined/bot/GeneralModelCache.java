@@ -0,0 +1,154 @@
+package com.kawamix.combined.bot;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.kawamix.combined.ngrammodel.forsudachi.NgramLanguageModel;
+
+/**
+ * 類似文IDの集合から作った汎用言語モデルのキャッシュ (LRU)
+ * 件数と推定メモリ使用量の両方に上限を持つ。キャッシュしたモデルは複数のリクエストで共有する。
+ * @author kawami
+ *
+ */
+public class GeneralModelCache {
+	private final int maxEntries;
+	private final long maxBytes;
+	private final LinkedHashMap<IdSet, CachedModel> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public GeneralModelCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param idList 類似文のID (順番と重複は無視する)
+	 * @param builder キャッシュにない場合にモデルを作る。nullを返した場合はキャッシュしない
+	 */
+	public NgramLanguageModel get(List<Long> idList, Function<List<Long>, NgramLanguageModel> builder) {
+		IdSet key = new IdSet(idList);
+		synchronized (this) {
+			CachedModel cached = this.cache.get(key);
+			if (cached != null) {
+				this.hitCount.incrementAndGet();
+				return cached.model;
+			}
+		}
+		this.missCount.incrementAndGet();
+		// 構築はロックの外で行う (同じキーが同時に来た場合は先に登録された方を使う)
+		NgramLanguageModel model = builder.apply(idList);
+		if (model == null)
+			return null;
+		CachedModel built = new CachedModel(model, model.estimateMemoryUsage());
+		synchronized (this) {
+			CachedModel cached = this.cache.get(key);
+			if (cached != null)
+				return cached.model;
+			if (built.bytes > this.maxBytes)
+				return model;
+			this.cache.put(key, built);
+			this.totalBytes += built.bytes;
+			evict();
+		}
+		return model;
+	}
+
+	private void evict() {
+		Iterator<CachedModel> iterator = this.cache.values().iterator();
+		while ((this.cache.size() > this.maxEntries || this.totalBytes > this.maxBytes) && iterator.hasNext()) {
+			CachedModel eldest = iterator.next();
+			iterator.remove();
+			this.totalBytes -= eldest.bytes;
+			this.evictionCount.incrementAndGet();
+		}
+	}
+
+	public synchronized void clear() {
+		this.cache.clear();
+		this.totalBytes = 0;
+	}
+
+	public synchronized int size() {
+		return this.cache.size();
+	}
+
+	public synchronized long getEstimatedBytes() {
+		return this.totalBytes;
+	}
+
+	public long getHitCount() {
+		return this.hitCount.get();
+	}
+
+	public long getMissCount() {
+		return this.missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return this.evictionCount.get();
+	}
+
+	public double getHitRate() {
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "GeneralModelCache[size=" + size() + ", bytes=" + getEstimatedBytes() + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+
+	private static class CachedModel {
+		private final NgramLanguageModel model;
+		private final long bytes;
+
+		CachedModel(NgramLanguageModel model, long bytes) {
+			this.model = model;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * 並べ替えて重複を除いたIDの集合
+	 */
+	private static class IdSet {
+		private final long[] ids;
+		private final int hash;
+
+		IdSet(List<Long> idList) {
+			long[] sorted = new long[idList.size()];
+			for (int i = 0; i < sorted.length; i++)
+				sorted[i] = idList.get(i);
+			Arrays.sort(sorted);
+			int size = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				if (i == 0 || sorted[i] != sorted[i - 1])
+					sorted[size++] = sorted[i];
+			}
+			this.ids = Arrays.copyOf(sorted, size);
+			this.hash = Arrays.hashCode(this.ids);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdSet && Arrays.equals(this.ids, ((IdSet) obj).ids);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+	}
+}
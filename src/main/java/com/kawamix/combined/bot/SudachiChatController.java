@@ -2,24 +2,46 @@ package com.kawamix.combined.bot;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
-import org.bson.Document;
-
+import com.kawamix.combined.metrics.Counter;
+import com.kawamix.combined.metrics.MetricsRegistry;
+import com.kawamix.combined.metrics.Timer;
+import com.kawamix.combined.ngrammodel.forsudachi.CompactionOptions;
+import com.kawamix.combined.ngrammodel.forsudachi.CompactionReport;
+import com.kawamix.combined.ngrammodel.forsudachi.GenerationContext;
 import com.kawamix.combined.ngrammodel.forsudachi.NgramLanguageModel;
+import com.kawamix.combined.ngrammodel.forsudachi.NgramModel;
 import com.kawamix.combined.ngrammodel.forsudachi.NgramSentenceGenerator;
 import com.kawamix.combined.ngrammodel.forsudachi.NgramSentenceGenerator.GENERATEMODE;
+import com.kawamix.combined.ngrammodel.forsudachi.OffHeapNgramModel;
+import com.kawamix.combined.ngrammodel.forsudachi.SudachiToken;
+import com.kawamix.combined.ngrammodel.forsudachi.TokenizationCache;
+import com.kawamix.combined.ngrammodel.forsudachi.Vocabulary;
+import com.kawamix.combined.ngrammodel.forsudachi.WordSimilarityTable;
+import com.kawamix.combined.reply.MongoReplyStore;
+import com.kawamix.combined.reply.ReplyStore;
 import com.kawamix.combined.wmd.SimilarSentence;
 import com.kawamix.sudachi.SudachiTokenizer;
 import com.kawamix.word2vec.Word2VecModel;
 import com.mongodb.MongoClient;
-import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
-import com.worksap.nlp.sudachi.Morpheme;
 
 public class SudachiChatController {
 	private int n = 2;
@@ -31,12 +53,43 @@ public class SudachiChatController {
 	private String stopWordsPath;
 
 	private NgramSentenceGenerator sentenceGenerator;
-	private NgramLanguageModel featuredLanguageModel;
+	private NgramModel featuredLanguageModel;
 	private SimilarSentence similarSentence;
 
-	private MongoCollection<Document> collection;
+	private ReplyStore replyStore;
+	private GeneralModelCache generalModelCache = new GeneralModelCache(256, 256L * 1024 * 1024);
 	private SudachiTokenizer tokenizer;
 
+	/**
+	 * リクエストごとの形態素解析に使う (複数スレッドから呼ばれるため共有のtokenizerは使わない)
+	 */
+	private TokenizerPool tokenizerPool;
+	private int tokenizerPoolSize = 1;
+	private Supplier<SudachiTokenizer> tokenizerFactory = SudachiTokenizer::new;
+	private TokenizationCache tokenizationCache;
+	private int tokenizationCacheSize = 10000;
+
+	/**
+	 * nextTextsで候補文を並列に生成するスレッドプール (initializeで作る)
+	 */
+	private ExecutorService generationExecutor;
+	private int generatorThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * 特徴言語モデルの圧縮条件 (nullなら圧縮しない)
+	 */
+	private CompactionOptions compactionOptions;
+	private CompactionReport compactionReport;
+	private boolean featuredModelOffHeap = false;
+	private int beamWidth = 0;
+	private long timeoutMillis = 0;
+
+	private MetricsRegistry metricsRegistry = MetricsRegistry.NOOP;
+	private Timer nextTextsTimer = MetricsRegistry.NOOP.timer("chat.nextTexts");
+	private Counter deadlineCounter = MetricsRegistry.NOOP.counter("chat.deadline");
+	private Counter similarRepliesCounter = MetricsRegistry.NOOP.counter("chat.similar.replies");
+	private Counter similarEmptyCounter = MetricsRegistry.NOOP.counter("chat.similar.empty");
+
 	/**
 	 *
 	 * @param n N-gramのN
@@ -67,122 +120,461 @@ public class SudachiChatController {
 	}
 
 	public void initialize(SudachiTokenizer tokenizer) throws IOException {
-		loadLanguageModel(tokenizer);
 		MongoClient client = new MongoClient("localhost", 27017);
 		MongoDatabase database = client.getDatabase("twitter_reply");
-		this.collection = database.getCollection("tweetpair");
+		initialize(tokenizer, new MongoReplyStore(database.getCollection("tweetpair")));
+	}
+
+	public void initialize(SudachiTokenizer tokenizer, ReplyStore replyStore) throws IOException {
+		if (this.generationExecutor == null)
+			this.generationExecutor = createGenerationExecutor(generatorThreads);
+		loadLanguageModel(tokenizer);
+		this.replyStore = replyStore;
+	}
+
+	/**
+	 * 汎用言語モデルのキャッシュを差し替える (件数・メモリの上限を変える場合など)
+	 */
+	public void setGeneralModelCache(GeneralModelCache generalModelCache) {
+		this.generalModelCache = generalModelCache;
+	}
+
+	public GeneralModelCache getGeneralModelCache() {
+		return this.generalModelCache;
+	}
+
+	/**
+	 * リクエストごとの形態素解析に使う形態素解析器の最大数と作り方 (initializeより前に設定する)
+	 * 既定では初期化時の1個だけを使い回す。
+	 */
+	public void setTokenizerPool(int size, Supplier<SudachiTokenizer> tokenizerFactory) {
+		this.tokenizerPoolSize = size;
+		this.tokenizerFactory = tokenizerFactory;
+	}
+
+	/**
+	 * nextTextsで使うスレッドプールを差し替える (元のプールがあれば停止する)
+	 */
+	public void setGenerationExecutor(ExecutorService generationExecutor) {
+		if (this.generationExecutor != null)
+			this.generationExecutor.shutdown();
+		this.generationExecutor = generationExecutor;
+	}
+
+	/**
+	 * nextTextsで候補文を並列に生成するスレッド数 (initializeより前に設定する。既定はCPUコア数)
+	 */
+	public void setGeneratorThreads(int threads) {
+		this.generatorThreads = threads;
+	}
+
+	private static ExecutorService createGenerationExecutor(int threads) {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "sentence-generator-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * 入力文やリプライ文の解析結果をキャッシュする件数 (initializeより前に設定する)
+	 */
+	public void setTokenizationCacheSize(int tokenizationCacheSize) {
+		this.tokenizationCacheSize = tokenizationCacheSize;
+	}
+
+	public TokenizationCache getTokenizationCache() {
+		return this.tokenizationCache;
+	}
+
+	/**
+	 * 読み込んだ特徴言語モデルを圧縮する条件 (initializeより前に設定する。nullなら圧縮しない)
+	 */
+	public void setCompactionOptions(CompactionOptions compactionOptions) {
+		this.compactionOptions = compactionOptions;
+	}
+
+	/**
+	 * @return 起動時に特徴言語モデルを圧縮した結果 (圧縮していなければnull)
+	 */
+	public CompactionReport getCompactionReport() {
+		return this.compactionReport;
+	}
+
+	/**
+	 * 特徴言語モデルをヒープに読み込まず、保存したファイルをメモリマップして使う (initializeより前に設定する)
+	 */
+	public void setFeaturedModelOffHeap(boolean featuredModelOffHeap) {
+		this.featuredModelOffHeap = featuredModelOffHeap;
+	}
+
+	/**
+	 * nextTextsをビームサーチで生成する場合のビーム幅 (0ならランダムウォークを候補の数だけ並列に行う)
+	 */
+	public void setBeamWidth(int beamWidth) {
+		this.beamWidth = beamWidth;
+	}
+
+	/**
+	 * nextTexts・nextText・characterizeTextの1回あたりの制限時間 (ミリ秒。0なら制限なし)
+	 * 過ぎた場合は、それまでに完成した候補文だけを返す。
+	 */
+	public void setTimeoutMillis(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * 計測値の記録先 (initializeより前に設定する。既定では記録しない)
+	 */
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+		this.nextTextsTimer = metricsRegistry.timer("chat.nextTexts");
+		this.deadlineCounter = metricsRegistry.counter("chat.deadline");
+		this.similarRepliesCounter = metricsRegistry.counter("chat.similar.replies");
+		this.similarEmptyCounter = metricsRegistry.counter("chat.similar.empty");
+	}
+
+	public MetricsRegistry getMetricsRegistry() {
+		return this.metricsRegistry;
 	}
 
 	private String getWakati(String text) {
 		StringBuilder sb = new StringBuilder();
-		for (Morpheme token : tokenizer.tokenize(text)) {
-			sb.append(token.surface());
-			sb.append(" ");
+		SudachiTokenizer tokenizer = tokenizerPool.borrow();
+		try {
+			for (SudachiToken token : tokenizationCache.tokenize(text, tokenizer)) {
+				sb.append(token.surface());
+				sb.append(" ");
+			}
+		} finally {
+			tokenizerPool.release(tokenizer);
 		}
 		return sb.toString();
 	}
 
+	/**
+	 * リクエストごとの汎用言語モデルを作る
+	 * 語彙表は子の語彙表にして、モデルと一緒に捨てる (共有の語彙表を増やさない)。
+	 */
+	private NgramLanguageModel buildRequestLanguageModel(List<String> lines) {
+		return buildLanguageModel(lines, Vocabulary.getDefault().createScope());
+	}
+
+	/**
+	 * 言語モデルを作る (形態素解析器はプールから借りる)
+	 * 特徴言語モデルに追記するものは共有の語彙表で作る。
+	 */
+	private NgramLanguageModel buildLanguageModel(List<String> lines, Vocabulary vocabulary) {
+		NgramLanguageModel languageModel = new NgramLanguageModel(n, vocabulary);
+		SudachiTokenizer tokenizer = tokenizerPool.borrow();
+		try {
+			languageModel.setTokenizer(tokenizer);
+			languageModel.setTokenizationCache(tokenizationCache);
+			languageModel.loadLines(lines);
+		} finally {
+			tokenizerPool.release(tokenizer);
+		}
+		return languageModel;
+	}
+
 	private void createSentenceGenerator() {
 		Word2VecModel word2VecModel = new Word2VecModel(this.word2VecModelPath);
-		sentenceGenerator = new NgramSentenceGenerator();
-		sentenceGenerator.setN(this.n);
-		sentenceGenerator.setTokenizer(this.tokenizer);
-		sentenceGenerator.setWord2VecModel(word2VecModel);
+		sentenceGenerator = new NgramSentenceGenerator(this.n, this.featuredLanguageModel, this.tokenizer,
+				word2VecModel, loadSimilarityTable(), this.metricsRegistry);
 		this.similarSentence = new SimilarSentence(word2VecModel, this.tokenizer, this.stopWordsPath);
 		this.similarSentence.load(allDocumentsPath, seq2VecPath);
 	}
 
+	/**
+	 * 特徴言語モデルの横に前計算した類似度表があれば読み込む (WordSimilarityTable.mainで作る)
+	 */
+	private WordSimilarityTable loadSimilarityTable() {
+		Path tablePath = WordSimilarityTable.tablePath(featuredLanguageModelPath);
+		if (!Files.exists(tablePath))
+			return null;
+		try {
+			return WordSimilarityTable.load(tablePath);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	private void loadLanguageModel(SudachiTokenizer tokenizer) throws IOException {
 		this.tokenizer = tokenizer;
-		Path featuredDirPath = Paths.get(this.rootDirectoryPathOfFeaturedTexts);
-		this.featuredLanguageModel = new NgramLanguageModel(n);
-		this.featuredLanguageModel.setTokenizer(tokenizer);
-		if (new File(featuredLanguageModelPath).exists()) {
-			this.featuredLanguageModel.loadSerializedFile(featuredLanguageModelPath);
-		} else {
-			this.featuredLanguageModel.loadFile(featuredDirPath);
-			this.featuredLanguageModel.save(featuredLanguageModelPath);
+		this.tokenizerPool = new TokenizerPool(tokenizerPoolSize, tokenizerFactory);
+		this.tokenizerPool.add(tokenizer);
+		this.tokenizationCache = new TokenizationCache(Vocabulary.getDefault(), tokenizationCacheSize,
+				Runtime.getRuntime().availableProcessors() * 4, metricsRegistry);
+		this.featuredLanguageModel = null;
+		if (featuredModelOffHeap && compactionOptions == null)
+			this.featuredLanguageModel = openMappedModel(featuredLanguageModelPath);
+		if (this.featuredLanguageModel == null) {
+			NgramLanguageModel languageModel = loadFeaturedLanguageModel(tokenizer);
+			if (featuredModelOffHeap) {
+				// 圧縮したモデルは元のファイルとは別に書き出してからマップする
+				String mappedPath = featuredLanguageModelPath;
+				if (compactionOptions != null) {
+					mappedPath = featuredLanguageModelPath + ".compacted";
+					languageModel.save(mappedPath);
+				}
+				this.featuredLanguageModel = OffHeapNgramModel.open(Paths.get(mappedPath), Vocabulary.getDefault());
+			} else {
+				this.featuredLanguageModel = languageModel;
+			}
+		}
+		// 保存済みモデル以降に追加された文を反映する
+		Path deltaLogPath = getDeltaLogPath();
+		if (Files.exists(deltaLogPath)) {
+			List<String> deltaLines = Files.readAllLines(deltaLogPath, StandardCharsets.UTF_8);
+			if (!deltaLines.isEmpty())
+				this.featuredLanguageModel.append(buildLanguageModel(deltaLines, Vocabulary.getDefault()));
 		}
 		createSentenceGenerator();
+		// 追記ログを反映した後のモデルで、形態素の追加処理の索引を別スレッドで作り始める
+		sentenceGenerator.prepareFeaturedIndex();
 		//		this.featuredLanguageModel.loadDirectory(featuredDirPath);
 	}
 
-	private List<String> getReplyTweetsFromId(List<Long> idList) {
-		List<String> tweets = new ArrayList<>();
-		for (long id : idList) {
-			Document query = new Document();
-			query.append("tweetid", id);
-			MongoCursor<Document> cursor = this.collection.find(query).iterator();
-			Document doc = cursor.next();
-			if (doc == null)
-				continue;
-			boolean restriction = false;
-			if (restriction) {
-				Document user = (Document) doc.get("user");
-				if (user == null)
-					continue;
+	/**
+	 * 保存済みの特徴言語モデルを読み込む (なければテキストから作って保存する) 。圧縮の設定があればメモリ上で圧縮する
+	 * 保存済みのファイルは常に圧縮前のモデルで、圧縮したモデルで上書きしない。
+	 */
+	private NgramLanguageModel loadFeaturedLanguageModel(SudachiTokenizer tokenizer) throws IOException {
+		NgramLanguageModel languageModel = loadSourceLanguageModel(tokenizer);
+		if (compactionOptions != null) {
+			CompactionReport report = languageModel.compact(compactionOptions);
+			recordCompaction(report);
+			languageModel = report.getCompactedModel();
+		}
+		return languageModel;
+	}
+
+	/**
+	 * 圧縮前の特徴言語モデルを読み込む (保存済みのファイルがなければテキストから作って保存する)
+	 */
+	private NgramLanguageModel loadSourceLanguageModel(SudachiTokenizer tokenizer) throws IOException {
+		NgramLanguageModel languageModel = new NgramLanguageModel(n);
+		languageModel.setTokenizer(tokenizer);
+		if (!new File(featuredLanguageModelPath).exists()
+				|| !languageModel.loadSerializedFile(featuredLanguageModelPath)) {
+			languageModel.loadFile(Paths.get(this.rootDirectoryPathOfFeaturedTexts));
+			languageModel.save(featuredLanguageModelPath);
+		}
+		return languageModel;
+	}
+
+	private void recordCompaction(CompactionReport report) {
+		this.compactionReport = report;
+		metricsRegistry.counter("compaction.nodes.kept").add(report.getKeptNodeCount());
+		metricsRegistry.counter("compaction.dropped.minCount").add(report.getDroppedByMinCount());
+		metricsRegistry.counter("compaction.dropped.maxBytes").add(report.getDroppedByMaxBytes());
+		metricsRegistry.counter("compaction.dropped.topK").add(report.getDroppedByTopK());
+		metricsRegistry.counter("compaction.dropped.unreachable").add(report.getDroppedUnreachable());
+	}
+
+	/**
+	 * @return 保存済みのモデルをメモリマップしたもの。ファイルがないか読めなければnull
+	 */
+	private static NgramModel openMappedModel(String path) {
+		if (!new File(path).exists())
+			return null;
+		try {
+			return OffHeapNgramModel.open(Paths.get(path), Vocabulary.getDefault());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * 特徴言語モデルの追記ログ (保存済みモデルに対して追加した文。起動時に読み直す)
+	 */
+	private Path getDeltaLogPath() {
+		return Paths.get(featuredLanguageModelPath + ".delta");
+	}
+
+	/**
+	 * 特徴言語モデルに文を追加する (再構築しない)
+	 * 追記ログに書いてから反映するため、再起動後も残る。生成中のリクエストはそのまま続けられる。
+	 */
+	public synchronized void addFeaturedLines(List<String> lines) throws IOException {
+		List<String> added = new ArrayList<>();
+		for (String line : lines) {
+			line = line.replace("\r", "").replace("\n", "");
+			if (!line.trim().isEmpty())
+				added.add(line);
+		}
+		if (added.isEmpty())
+			return;
+		Files.write(getDeltaLogPath(), added, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+		this.featuredLanguageModel.append(buildLanguageModel(added, Vocabulary.getDefault()));
+		sentenceGenerator.prepareFeaturedIndex();
+	}
+
+	/**
+	 * 追加分を含めた特徴言語モデルを保存し直し、追記ログを空にする
+	 * 圧縮して使っている場合は、保存済みの圧縮前のモデルに追記ログの文を加えて保存する。
+	 */
+	public synchronized void saveFeaturedLanguageModel() throws IOException {
+		Path temporaryPath = Paths.get(featuredLanguageModelPath + ".tmp");
+		if (compactionOptions == null) {
+			this.featuredLanguageModel.save(temporaryPath.toString());
+		} else {
+			NgramLanguageModel source = loadSourceLanguageModel(this.tokenizer);
+			Path deltaLogPath = getDeltaLogPath();
+			if (Files.exists(deltaLogPath)) {
+				List<String> deltaLines = Files.readAllLines(deltaLogPath, StandardCharsets.UTF_8);
+				if (!deltaLines.isEmpty())
+					source.append(buildLanguageModel(deltaLines, Vocabulary.getDefault()));
 			}
-			String tweet = doc.getString("tweet");
-			tweets.add(tweet.replaceAll("^ ", ""));
+			source.save(temporaryPath.toString());
 		}
-		return tweets;
+		Files.move(temporaryPath, Paths.get(featuredLanguageModelPath), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		Files.deleteIfExists(getDeltaLogPath());
 	}
 
 	public String characterizeText(String original) {
+		return characterizeText(original, this.timeoutMillis);
+	}
+
+	/**
+	 * @param timeoutMillis この呼び出しの制限時間 (ミリ秒。0なら制限なし)。言語モデルの作成も含む。
+	 * @return 生成した文。制限時間までに文が完成しなければnull
+	 */
+	public String characterizeText(String original, long timeoutMillis) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
 		// リプライ文の集合よりN-gram言語モデル生成
 		List<String> lines = new ArrayList<>();
 		lines.add(original);
-		NgramLanguageModel generalLanguageModel = new NgramLanguageModel(n);
-		generalLanguageModel.setTokenizer(this.tokenizer);
-		generalLanguageModel.loadLines(lines);
+		NgramLanguageModel generalLanguageModel = buildRequestLanguageModel(lines);
 
 		// リプライ言語モデルと特徴的言語モデルよりテキスト生成
-		sentenceGenerator.setMode(GENERATEMODE.CHARACTERIZE);
-		return sentenceGenerator.generateText(featuredLanguageModel, generalLanguageModel);
+		GenerationContext context = new GenerationContext(generalLanguageModel, GENERATEMODE.CHARACTERIZE);
+		if (timeoutMillis > 0)
+			context.setDeadline(deadline);
+		String generated = sentenceGenerator.generateText(context);
+		if (context.isDeadlineExceeded())
+			deadlineCounter.increment();
+		return generated;
 	}
 
 	private NgramLanguageModel generateLM(String text) {
 		// 類似文集合取得
 		List<Long> similarSentenceIdList = similarSentence.getSimilarSentenceIdList(getWakati(text),
 				SimilarSentence.MAX_WMD_VALUE);
+		if (similarSentenceIdList == null || similarSentenceIdList.isEmpty())
+			return null;
 
+		// 同じ類似文集合から作ったモデルがあれば再利用する
+		return generalModelCache.get(similarSentenceIdList, this::buildGeneralLanguageModel);
+	}
+
+	private NgramLanguageModel buildGeneralLanguageModel(List<Long> similarSentenceIdList) {
 		// 各類似文に対応するリプライ文を取得
-		List<String> tweets = getReplyTweetsFromId(similarSentenceIdList);
-		for (String tweet : tweets) {
-			System.out.println("similar:" + tweet);
-		}
-		System.out.println("found similar text.");
-		if (tweets.size() < 1)
+		List<String> tweets = replyStore.findReplies(similarSentenceIdList);
+		similarRepliesCounter.add(tweets.size());
+		if (tweets.size() < 1) {
+			similarEmptyCounter.increment();
 			return null;
+		}
 
 		// リプライ文の集合よりN-gram言語モデル生成
-		NgramLanguageModel generalLanguageModel = new NgramLanguageModel(n);
-		generalLanguageModel.setTokenizer(this.tokenizer);
-		generalLanguageModel.loadLines(tweets);
-		return generalLanguageModel;
+		return buildRequestLanguageModel(tweets);
 	}
 
 	public List<String> nextTexts(String text, int num) {
-		NgramLanguageModel generalLanguageModel = generateLM(text);
-		if (generalLanguageModel == null)
-			return new ArrayList<>();
+		return nextTexts(text, num, ThreadLocalRandom.current().nextLong());
+	}
 
+	/**
+	 * 候補文をnum個、スレッドプールで並列に生成する
+	 * @param seed 同じシードなら (同じ汎用言語モデルに対して) 同じ候補文を同じ順番で返す
+	 */
+	public List<String> nextTexts(String text, int num, long seed) {
+		return nextTexts(text, num, seed, this.timeoutMillis);
+	}
+
+	/**
+	 * @param timeoutMillis この呼び出しの制限時間 (ミリ秒。0なら制限なし)。リプライ言語モデルの作成も含む。
+	 *            過ぎた場合は、それまでに完成した候補文だけを返す (空のこともある)
+	 */
+	public List<String> nextTexts(String text, int num, long seed, long timeoutMillis) {
+		if (num < 1)
+			return new ArrayList<>();
+		long start = nextTextsTimer.start();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		NgramLanguageModel generalLanguageModel = generateLM(text);
 		List<String> texts = new ArrayList<>();
-		for (int i = 0; i < num; i++) {
-			sentenceGenerator.setMode(GENERATEMODE.CHAT);
-			String next = sentenceGenerator.generateText(featuredLanguageModel, generalLanguageModel);
-			texts.add(next);
+		boolean deadlineExceeded = false;
+		if (generalLanguageModel != null && beamWidth > 0) {
+			// 1回のビームサーチで重複しない候補文をまとめて得る
+			GenerationContext context = new GenerationContext(generalLanguageModel, GENERATEMODE.BEAM,
+					new SplittableRandom(seed)).setBeamWidth(beamWidth);
+			if (timeoutMillis > 0)
+				context.setDeadline(deadline);
+			texts.addAll(sentenceGenerator.generateTexts(context, num));
+			deadlineExceeded = context.isDeadlineExceeded();
+		} else if (generalLanguageModel != null) {
+			// 乱数は投入前にこのスレッドで分割しておく (実行順によらず各候補の乱数列が決まる)
+			SplittableRandom random = new SplittableRandom(seed);
+			List<GenerationContext> contexts = new ArrayList<>(num);
+			List<Future<String>> futures = new ArrayList<>(num);
+			for (int i = 0; i < num; i++) {
+				GenerationContext context = new GenerationContext(generalLanguageModel, GENERATEMODE.CHAT,
+						random.split());
+				if (timeoutMillis > 0)
+					context.setDeadline(deadline);
+				contexts.add(context);
+				futures.add(generationExecutor.submit(() -> sentenceGenerator.generateText(context)));
+			}
+			try {
+				for (Future<String> future : futures) {
+					String generated = future.get();
+					if (generated != null) // 期限までに完成しなかった候補は除く
+						texts.add(generated);
+				}
+				for (GenerationContext context : contexts) {
+					if (context.isDeadlineExceeded())
+						deadlineExceeded = true;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				futures.forEach(future -> future.cancel(true));
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("failed to generate a text", e.getCause());
+			}
 		}
+		if (deadlineExceeded)
+			deadlineCounter.increment();
+		nextTextsTimer.stop(start);
 		return texts;
 	}
 
 	public String nextText(String text) {
+		return nextText(text, this.timeoutMillis);
+	}
+
+	/**
+	 * @param timeoutMillis この呼び出しの制限時間 (ミリ秒。0なら制限なし)。リプライ言語モデルの作成も含む。
+	 * @return 生成した文。リプライ言語モデルが作れないか、制限時間までに文が完成しなければnull
+	 */
+	public String nextText(String text, long timeoutMillis) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
 		// リプライ言語モデルと特徴的言語モデルよりテキスト生成
 		NgramLanguageModel generalLanguageModel = generateLM(text);
 		if (generalLanguageModel == null)
 			return null;
-		sentenceGenerator.setMode(GENERATEMODE.CHAT);
-		return sentenceGenerator.generateText(featuredLanguageModel, generalLanguageModel);
+		GenerationContext context = new GenerationContext(generalLanguageModel, GENERATEMODE.CHAT);
+		if (timeoutMillis > 0)
+			context.setDeadline(deadline);
+		String generated = sentenceGenerator.generateText(context);
+		if (context.isDeadlineExceeded())
+			deadlineCounter.increment();
+		return generated;
 
 	}
 }
@@ -0,0 +1,63 @@
+package com.kawamix.combined.bot;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.kawamix.sudachi.SudachiTokenizer;
+
+/**
+ * 形態素解析器のプール
+ * SudachiTokenizerはスレッドセーフではなく、作成にも時間とメモリがかかるため、
+ * 最大maxSize個まで作って使い回す。すべて使用中の場合は返却を待つ。
+ * @author kawami
+ *
+ */
+final class TokenizerPool {
+	private final int maxSize;
+	private final Supplier<SudachiTokenizer> factory;
+	private final BlockingQueue<SudachiTokenizer> idle = new LinkedBlockingQueue<>();
+	private final AtomicInteger created = new AtomicInteger();
+
+	TokenizerPool(int maxSize, Supplier<SudachiTokenizer> factory) {
+		this.maxSize = Math.max(1, maxSize);
+		this.factory = factory;
+	}
+
+	/**
+	 * 作成済みの形態素解析器を加える (初期化時に使ったものなど)
+	 */
+	void add(SudachiTokenizer tokenizer) {
+		this.created.incrementAndGet();
+		this.idle.offer(tokenizer);
+	}
+
+	/**
+	 * 使い終わったらrelease()で返すこと
+	 */
+	SudachiTokenizer borrow() {
+		SudachiTokenizer tokenizer = this.idle.poll();
+		if (tokenizer != null)
+			return tokenizer;
+		if (this.created.incrementAndGet() <= this.maxSize) {
+			try {
+				return this.factory.get();
+			} catch (RuntimeException e) {
+				this.created.decrementAndGet();
+				throw e;
+			}
+		}
+		this.created.decrementAndGet();
+		try {
+			return this.idle.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for a tokenizer", e);
+		}
+	}
+
+	void release(SudachiTokenizer tokenizer) {
+		this.idle.offer(tokenizer);
+	}
+}
@@ -0,0 +1,12 @@
+package com.kawamix.combined.metrics;
+
+/**
+ * 回数の計測
+ * @author kawami
+ *
+ */
+public interface Counter {
+	void increment();
+
+	void add(long delta);
+}
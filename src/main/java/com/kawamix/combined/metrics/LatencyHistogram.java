@@ -0,0 +1,103 @@
+package com.kawamix.combined.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 処理時間のヒストグラム
+ * ナノ秒の値を2のべき乗ごとのバケットに数える。パーセンタイルはバケットの上限値で近似する (誤差は最大2倍)。
+ * 複数スレッドから同時に記録できる。
+ * @author kawami
+ *
+ */
+public class LatencyHistogram implements Timer {
+	private final String name;
+	private final LongAdder[] buckets = new LongAdder[63];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public long start() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public void stop(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	@Override
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		// バケットiは [2^i, 2^(i+1)) (0はバケット0)
+		buckets[nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos)].increment();
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public double getMeanNanos() {
+		long count = getCount();
+		return count == 0 ? 0.0d : (double) getTotalNanos() / count;
+	}
+
+	/**
+	 * @param quantile 0.0〜1.0 (0.99なら99パーセンタイル)
+	 * @return 近似値 (ナノ秒)
+	 */
+	public long getPercentileNanos(double quantile) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0)
+			return 0L;
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(rank, 1))
+				return Math.min((1L << (i + 1)) - 1, getMaxNanos());
+		}
+		return getMaxNanos();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", name, getCount(),
+				getMeanNanos() / TimeUnit.MILLISECONDS.toNanos(1), toMillis(getPercentileNanos(0.5)),
+				toMillis(getPercentileNanos(0.99)), toMillis(getMaxNanos()));
+	}
+
+	private static double toMillis(long nanos) {
+		return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
@@ -0,0 +1,24 @@
+package com.kawamix.combined.metrics;
+
+/**
+ * 計測値の登録先
+ * 計測する側は生成時にtimer/counterを1回だけ取得して保持し、呼び出しごとには名前で引かない。
+ * @author kawami
+ *
+ */
+public interface MetricsRegistry {
+	/**
+	 * 何も記録しない (既定値)。start/stopは時刻も取得しない
+	 */
+	MetricsRegistry NOOP = new NoopMetricsRegistry();
+
+	/**
+	 * 処理時間の分布
+	 */
+	Timer timer(String name);
+
+	/**
+	 * 回数
+	 */
+	Counter counter(String name);
+}
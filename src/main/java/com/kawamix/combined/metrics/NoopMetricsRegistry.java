@@ -0,0 +1,43 @@
+package com.kawamix.combined.metrics;
+
+/**
+ * 何も記録しない実装 (MetricsRegistry.NOOP)
+ * @author kawami
+ *
+ */
+final class NoopMetricsRegistry implements MetricsRegistry {
+	private static final Timer TIMER = new Timer() {
+		@Override
+		public long start() {
+			return 0L;
+		}
+
+		@Override
+		public void stop(long start) {
+		}
+
+		@Override
+		public void record(long nanos) {
+		}
+	};
+
+	private static final Counter COUNTER = new Counter() {
+		@Override
+		public void increment() {
+		}
+
+		@Override
+		public void add(long delta) {
+		}
+	};
+
+	@Override
+	public Timer timer(String name) {
+		return TIMER;
+	}
+
+	@Override
+	public Counter counter(String name) {
+		return COUNTER;
+	}
+}
@@ -0,0 +1,40 @@
+package com.kawamix.combined.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 複数スレッドから加算できるカウンタ
+ * @author kawami
+ *
+ */
+public class SimpleCounter implements Counter {
+	private final String name;
+	private final LongAdder count = new LongAdder();
+
+	public SimpleCounter(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public void increment() {
+		count.increment();
+	}
+
+	@Override
+	public void add(long delta) {
+		count.add(delta);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public String toString() {
+		return name + " count=" + getCount();
+	}
+}
@@ -0,0 +1,58 @@
+package com.kawamix.combined.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * メモリ上に記録する実装 (同じ名前なら同じtimer/counterを返す)
+ * @author kawami
+ *
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+	private final ConcurrentMap<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, SimpleCounter> counters = new ConcurrentHashMap<>();
+
+	@Override
+	public LatencyHistogram timer(String name) {
+		return timers.computeIfAbsent(name, LatencyHistogram::new);
+	}
+
+	@Override
+	public SimpleCounter counter(String name) {
+		return counters.computeIfAbsent(name, SimpleCounter::new);
+	}
+
+	/**
+	 * @return 名前順
+	 */
+	public List<LatencyHistogram> getTimers() {
+		List<LatencyHistogram> list = new ArrayList<>(timers.values());
+		Collections.sort(list, Comparator.comparing(LatencyHistogram::getName));
+		return list;
+	}
+
+	/**
+	 * @return 名前順
+	 */
+	public List<SimpleCounter> getCounters() {
+		List<SimpleCounter> list = new ArrayList<>(counters.values());
+		Collections.sort(list, Comparator.comparing(SimpleCounter::getName));
+		return list;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (LatencyHistogram timer : getTimers()) {
+			sb.append(timer).append('\n');
+		}
+		for (SimpleCounter counter : getCounters()) {
+			sb.append(counter).append('\n');
+		}
+		return sb.toString();
+	}
+}
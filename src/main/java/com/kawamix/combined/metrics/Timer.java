@@ -0,0 +1,25 @@
+package com.kawamix.combined.metrics;
+
+/**
+ * 処理時間の計測
+ * <pre>
+ * long start = timer.start();
+ * ...
+ * timer.stop(start);
+ * </pre>
+ * @author kawami
+ *
+ */
+public interface Timer {
+	/**
+	 * @return 計測開始時刻 (ナノ秒)。記録しない実装では0
+	 */
+	long start();
+
+	/**
+	 * @param start start()の戻り値
+	 */
+	void stop(long start);
+
+	void record(long nanos);
+}
@@ -0,0 +1,56 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+/**
+ * 言語モデルの圧縮条件 (NgramLanguageModel.compact)
+ * どの条件でも、各キーの後続ノードは少なくとも1個 (最も出現回数の多いもの) を残す。
+ * (残したノードの次のキーが必ず残るので、生成中に行き止まりにならない)
+ * 文頭からたどれなくなったキーは除く。
+ * @author kawami
+ *
+ */
+public class CompactionOptions {
+	private int minCount = 1;
+	private int topK = 0;
+	private long maxBytes = 0L;
+
+	public int getMinCount() {
+		return this.minCount;
+	}
+
+	/**
+	 * 出現回数がminCount未満のN-gramを除く (既定は1 = 除かない)
+	 */
+	public CompactionOptions setMinCount(int minCount) {
+		this.minCount = Math.max(1, minCount);
+		return this;
+	}
+
+	public int getTopK() {
+		return this.topK;
+	}
+
+	/**
+	 * 各キーの後続ノードを出現回数の上位topK個までにする (0は無制限)
+	 */
+	public CompactionOptions setTopK(int topK) {
+		this.topK = Math.max(0, topK);
+		return this;
+	}
+
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * 推定使用量 (estimateMemoryUsage) の目標。超える場合は収まるまで出現回数の下限を上げる (0は無制限)
+	 */
+	public CompactionOptions setMaxBytes(long maxBytes) {
+		this.maxBytes = Math.max(0L, maxBytes);
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "minCount=" + minCount + ", topK=" + topK + ", maxBytes=" + maxBytes;
+	}
+}
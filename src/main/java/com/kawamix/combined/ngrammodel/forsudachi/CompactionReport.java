@@ -0,0 +1,118 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+/**
+ * 言語モデルの圧縮結果
+ * 除いたN-gramは理由ごとに数える (出現回数の下限 → 使用量の目標のために上げた下限 → 上位K個 の順に判定)。
+ * 文頭からたどれなくなったキーの後続ノードは別に数える。
+ * @author kawami
+ *
+ */
+public class CompactionReport {
+	private final NgramLanguageModel compactedModel;
+	private final CompactionOptions options;
+	private final int effectiveMinCount;
+	private final int originalKeyCount, originalNodeCount, keptKeyCount, keptNodeCount;
+	private final int droppedByMinCount, droppedByMaxBytes, droppedByTopK, droppedUnreachable;
+	private final long droppedOccurrences;
+	private final long originalBytes, compactedBytes;
+
+	CompactionReport(NgramLanguageModel compactedModel, CompactionOptions options, int effectiveMinCount,
+			int originalKeyCount, int originalNodeCount, int droppedByMinCount, int droppedByMaxBytes,
+			int droppedByTopK, int droppedUnreachable, long droppedOccurrences, long originalBytes) {
+		this.compactedModel = compactedModel;
+		this.options = options;
+		this.effectiveMinCount = effectiveMinCount;
+		this.originalKeyCount = originalKeyCount;
+		this.originalNodeCount = originalNodeCount;
+		this.keptKeyCount = compactedModel.getKeyCount();
+		this.keptNodeCount = compactedModel.getNodeCount();
+		this.droppedByMinCount = droppedByMinCount;
+		this.droppedByMaxBytes = droppedByMaxBytes;
+		this.droppedByTopK = droppedByTopK;
+		this.droppedUnreachable = droppedUnreachable;
+		this.droppedOccurrences = droppedOccurrences;
+		this.originalBytes = originalBytes;
+		this.compactedBytes = compactedModel.estimateMemoryUsage();
+	}
+
+	/**
+	 * 圧縮後のモデル (元のモデルと語彙を共有する)
+	 */
+	public NgramLanguageModel getCompactedModel() {
+		return this.compactedModel;
+	}
+
+	/**
+	 * 使用量の目標のために上げた後の出現回数の下限
+	 */
+	public int getEffectiveMinCount() {
+		return this.effectiveMinCount;
+	}
+
+	public int getOriginalKeyCount() {
+		return this.originalKeyCount;
+	}
+
+	public int getOriginalNodeCount() {
+		return this.originalNodeCount;
+	}
+
+	public int getKeptKeyCount() {
+		return this.keptKeyCount;
+	}
+
+	public int getKeptNodeCount() {
+		return this.keptNodeCount;
+	}
+
+	public int getDroppedByMinCount() {
+		return this.droppedByMinCount;
+	}
+
+	public int getDroppedByMaxBytes() {
+		return this.droppedByMaxBytes;
+	}
+
+	public int getDroppedByTopK() {
+		return this.droppedByTopK;
+	}
+
+	/**
+	 * 文頭からたどれなくなったキーの後続ノードとして除いた数
+	 */
+	public int getDroppedUnreachable() {
+		return this.droppedUnreachable;
+	}
+
+	/**
+	 * 除いたN-gramの出現回数の合計
+	 */
+	public long getDroppedOccurrences() {
+		return this.droppedOccurrences;
+	}
+
+	public long getOriginalBytes() {
+		return this.originalBytes;
+	}
+
+	public long getCompactedBytes() {
+		return this.compactedBytes;
+	}
+
+	/**
+	 * 使用量の目標を満たしたか (各キーに1個は残すため、満たせない場合がある)
+	 */
+	public boolean isWithinBudget() {
+		return options.getMaxBytes() == 0L || compactedBytes <= options.getMaxBytes();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"compaction(%s): nodes %d -> %d, keys %d -> %d, bytes %d -> %d%s, effective minCount %d, "
+						+ "dropped minCount=%d maxBytes=%d topK=%d unreachable=%d (%d occurrences)",
+				options, originalNodeCount, keptNodeCount, originalKeyCount, keptKeyCount, originalBytes,
+				compactedBytes, isWithinBudget() ? "" : " (over budget)", effectiveMinCount, droppedByMinCount,
+				droppedByMaxBytes, droppedByTopK, droppedUnreachable, droppedOccurrences);
+	}
+}
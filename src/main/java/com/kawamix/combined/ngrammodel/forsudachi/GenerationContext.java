@@ -0,0 +1,145 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.kawamix.combined.ngrammodel.forsudachi.NgramSentenceGenerator.FEATUREDSTATUS;
+import com.kawamix.combined.ngrammodel.forsudachi.NgramSentenceGenerator.GENERATEMODE;
+
+/**
+ * 1回の文生成に固有の状態
+ * NgramSentenceGeneratorは共有し、呼び出しごとにこのオブジェクトを作って渡す。
+ * (1つのコンテキストを複数のスレッドで同時に使わないこと)
+ * @author kawami
+ *
+ */
+public class GenerationContext {
+	/**
+	 * リプライ文などから作ったこのリクエスト用の汎用言語モデル
+	 */
+	private final NgramLanguageModel generalLanguageModel;
+	private final GENERATEMODE mode;
+	private SamplingPolicy samplingPolicy = SamplingPolicy.TOP_K;
+	private int beamWidth = 16;
+	private final SplittableRandom random;
+	private boolean hasDeadline = false;
+	private long deadline; // System.nanoTime()基準
+	private boolean deadlineExceeded = false;
+
+	/**
+	 * 直前のステップで特徴言語モデルをどう使ったか
+	 */
+	FEATUREDSTATUS status = FEATUREDSTATUS.NONE;
+
+	/**
+	 * 生成中の文に含まれるノード (ループの判定用。SudachiNodeはID列で比較する)
+	 */
+	private final Set<SudachiNode> visited = new HashSet<>();
+
+	public GenerationContext(NgramLanguageModel generalLanguageModel, GENERATEMODE mode) {
+		this(generalLanguageModel, mode, new SplittableRandom());
+	}
+
+	/**
+	 * @param random この生成で使う乱数 (同じシードから作れば同じモデルに対して同じ文が生成される)
+	 */
+	public GenerationContext(NgramLanguageModel generalLanguageModel, GENERATEMODE mode, SplittableRandom random) {
+		this.generalLanguageModel = generalLanguageModel;
+		this.mode = mode;
+		this.random = random;
+	}
+
+	public NgramLanguageModel getGeneralLanguageModel() {
+		return this.generalLanguageModel;
+	}
+
+	public GENERATEMODE getMode() {
+		return this.mode;
+	}
+
+	public SplittableRandom getRandom() {
+		return this.random;
+	}
+
+	public SamplingPolicy getSamplingPolicy() {
+		return this.samplingPolicy;
+	}
+
+	/**
+	 * 置換・追加・削除のいずれも行わなかったときの次ノードの選び方 (デフォルトは上位5個から一様)
+	 */
+	public GenerationContext setSamplingPolicy(SamplingPolicy samplingPolicy) {
+		this.samplingPolicy = samplingPolicy;
+		return this;
+	}
+
+	public int getBeamWidth() {
+		return this.beamWidth;
+	}
+
+	/**
+	 * BEAMモードで各ステップに残す途中の文の数 (デフォルトは16。生成する文の数より小さければその数)
+	 */
+	public GenerationContext setBeamWidth(int beamWidth) {
+		this.beamWidth = beamWidth;
+		return this;
+	}
+
+	/**
+	 * 生成を打ち切る時刻 (System.nanoTime()基準)
+	 * 過ぎた場合、それまでに完成した最もよい文を返す (なければnull)。
+	 */
+	public GenerationContext setDeadline(long deadlineNanos) {
+		this.hasDeadline = true;
+		this.deadline = deadlineNanos;
+		return this;
+	}
+
+	/**
+	 * 今からtimeoutMillisミリ秒後を期限にする (0以下なら期限なし)
+	 */
+	public GenerationContext setTimeout(long timeoutMillis) {
+		if (timeoutMillis > 0)
+			return setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+		this.hasDeadline = false;
+		return this;
+	}
+
+	/**
+	 * @return 期限を過ぎて生成を打ち切ったか
+	 */
+	public boolean isDeadlineExceeded() {
+		return this.deadlineExceeded;
+	}
+
+	/**
+	 * 生成中の文を空にする (文を作り直すとき)
+	 */
+	void clearVisited() {
+		this.visited.clear();
+	}
+
+	void visit(SudachiNode node) {
+		this.visited.add(node);
+	}
+
+	void visitAll(List<SudachiNode> nodes) {
+		this.visited.addAll(nodes);
+	}
+
+	boolean isVisited(SudachiNode node) {
+		return this.visited.contains(node);
+	}
+
+	/**
+	 * 期限を過ぎていれば打ち切りを記録してtrueを返す
+	 */
+	boolean checkDeadline() {
+		if (!this.deadlineExceeded && this.hasDeadline && System.nanoTime() - this.deadline >= 0)
+			this.deadlineExceeded = true;
+		return this.deadlineExceeded;
+	}
+}
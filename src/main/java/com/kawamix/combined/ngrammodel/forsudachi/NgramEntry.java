@@ -0,0 +1,80 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * N-1個のトークンIDをキーとする後続ノードの一覧
+ * @author kawami
+ *
+ */
+final class NgramEntry implements Entry<SudachiNodeKey, List<SudachiNode>> {
+	private final SudachiNodeKey key;
+	private final List<SudachiNode> nodes;
+	private volatile SuccessorSampler sampler;
+	private volatile ReplacementBuckets replacementBuckets;
+
+	NgramEntry(SudachiNodeKey key) {
+		this(key, new ArrayList<>());
+	}
+
+	/**
+	 * 追記用: 作り終えた一覧を持つエントリ (公開後は一覧を変更しない)
+	 */
+	NgramEntry(SudachiNodeKey key, List<SudachiNode> nodes) {
+		this.key = key;
+		this.nodes = nodes;
+	}
+
+	int[] getKeyIds() {
+		return this.key.getIds();
+	}
+
+	/**
+	 * 後続ノードの標本抽出用の表 (未作成または無効化されていれば作る)
+	 */
+	SuccessorSampler getSampler() {
+		SuccessorSampler current = this.sampler;
+		if (current == null) {
+			current = new SuccessorSampler(this.nodes);
+			this.sampler = current;
+		}
+		return current;
+	}
+
+	/**
+	 * 置換処理用に品詞ごとにまとめた後続ノード (未作成または無効化されていれば作る)
+	 */
+	ReplacementBuckets getReplacementBuckets() {
+		ReplacementBuckets current = this.replacementBuckets;
+		if (current == null) {
+			current = new ReplacementBuckets(this.nodes);
+			this.replacementBuckets = current;
+		}
+		return current;
+	}
+
+	/**
+	 * 後続ノードや出現回数が変わったときに呼ぶ
+	 */
+	void invalidate() {
+		this.sampler = null;
+		this.replacementBuckets = null;
+	}
+
+	@Override
+	public SudachiNodeKey getKey() {
+		return this.key;
+	}
+
+	@Override
+	public List<SudachiNode> getValue() {
+		return this.nodes;
+	}
+
+	@Override
+	public List<SudachiNode> setValue(List<SudachiNode> value) {
+		throw new UnsupportedOperationException();
+	}
+}
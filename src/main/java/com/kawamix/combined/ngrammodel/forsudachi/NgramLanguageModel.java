@@ -1,20 +1,33 @@
 package com.kawamix.combined.ngrammodel.forsudachi;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
-import com.kawamix.serialize.Serialize;
-import com.kawamix.serialize.Serialize.TYPE;
 import com.kawamix.sudachi.SudachiTokenizer;
 import com.worksap.nlp.sudachi.Morpheme;
 
@@ -23,62 +36,298 @@ import com.worksap.nlp.sudachi.Morpheme;
  * @author kawami
  *
  */
-public class NgramLanguageModel {
+public class NgramLanguageModel extends NgramModel {
 	private int n; //the n of ngram
 	private SudachiTokenizer tokenizer;
-	private Map<SudachiNodeKey, List<SudachiNode>> chainMap = new HashMap<>();
-	private Map<String, Integer> wordFreqMap = new HashMap<>();
+	private final Vocabulary vocabulary;
+	private final NgramTrie trie; // キーの後続ノード一覧とノード
+	private volatile HeadIndex headIndex; // 文頭キーの索引 (登録で無効になり、次の参照時に作り直す)
+	private Map<String, Integer> wordFreqMap = new ConcurrentHashMap<>(); // 追記中も読めるように
+	private List<SudachiNode> createdNodes; // 並列構築のシャードだけ: ノードを作った順
+
+	/**
+	 * 並列構築の設定
+	 */
+	private static final int MIN_LINES_PER_SHARD = 1000;
+
+	/**
+	 * ファイルから一度に読む行数 (読み込み中に保持するのはこの分だけ)
+	 */
+	private static final int LINES_PER_CHUNK = 64 * MIN_LINES_PER_SHARD;
+
+	public static final int TOP_K = 5;
+
+	/**
+	 * バックオフで後続ノードを集めるキーの数の上限
+	 */
+	private static final int MAX_BACKOFF_KEYS = 256;
+
+	private static final ThreadLocal<SplittableRandom> RANDOM = ThreadLocal.withInitial(SplittableRandom::new);
+	private int parallelism = 1;
+	private Supplier<SudachiTokenizer> tokenizerFactory = SudachiTokenizer::new;
+	private TokenizationCache tokenizationCache;
 
 	public NgramLanguageModel(int n) {
+		this(n, Vocabulary.getDefault());
+	}
+
+	public NgramLanguageModel(int n, Vocabulary vocabulary) {
 		this.n = n;
+		this.vocabulary = vocabulary;
+		this.trie = new NgramTrie(n);
 	}
 
 	public void setTokenizer(SudachiTokenizer tokenizer) {
 		this.tokenizer = tokenizer;
 	}
 
+	/**
+	 * 2以上を指定すると、loadDirectoryはファイル単位、loadFile/loadLinesは行の範囲単位でコーパスを分割し、
+	 * ForkJoinPool上で並列に集計してから結合する。結合後のモデルは逐次構築と同じになる。
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * loadLinesで解析結果を使い回すキャッシュ (語彙表がこのモデルの共有の語彙表と同じもの。ファイルからの一括構築では使わない)
+	 */
+	public void setTokenizationCache(TokenizationCache tokenizationCache) {
+		if (tokenizationCache != null && tokenizationCache.getVocabulary() != this.vocabulary.getRoot())
+			throw new IllegalArgumentException("the cache must share the vocabulary of this model");
+		this.tokenizationCache = tokenizationCache;
+	}
+
+	/**
+	 * 並列構築の各ワーカーが使うTokenizerの生成方法 (ワーカーのスレッドごとに1つ生成する)
+	 */
+	public void setTokenizerFactory(Supplier<SudachiTokenizer> tokenizerFactory) {
+		this.tokenizerFactory = tokenizerFactory;
+	}
+
+	public int getN() {
+		return this.n;
+	}
+
+	public Vocabulary getVocabulary() {
+		return this.vocabulary;
+	}
+
 	public void save(String path) {
 		try {
-			Serialize.saveObject(path, this.chainMap, TYPE.DEFAULT);
+			List<NgramEntry> entries = new ArrayList<>(this.trie.getEntryCount());
+			this.trie.forEachEntry(entries::add);
+			NgramModelFile.write(Paths.get(path), n, this.vocabulary, entries);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	public void loadSerializedFile(String path) {
+	/**
+	 * saveで書き出したバイナリ形式のモデルを読み込む
+	 * @return 読み込めなかった場合(旧形式のファイルなど)はfalse
+	 */
+	public boolean loadSerializedFile(String path) {
 		try {
 			System.out.println("loading featured LM...");
-			//			this.chainMap = (HashMap) Serialize.loadObject(path);
-			this.chainMap = (Map) Serialize.loadObject(path);
-			countFrequency();
-
-		} catch (IOException | ClassNotFoundException e) {
+			NgramModelFile file = NgramModelFile.open(Paths.get(path));
+			if (file.getN() != n)
+				throw new IOException("n of " + path + " is " + file.getN());
+			load(file);
+			buildIndexes();
+			return true;
+		} catch (IOException e) {
 			e.printStackTrace();
+			return false;
 		}
 	}
 
-	private void countFrequency() {
-		for (List<SudachiNode> nodeList : this.chainMap.values()) {
-			for (SudachiNode node : nodeList) {
-				Morpheme morpheme = node.getLastToken();
-				if (morpheme == null)
-					continue;
-				String surface = morpheme.surface();
-				Integer freq = this.wordFreqMap.get(surface);
-				if (freq == null)
-					freq = 1;
-				else
-					freq = freq + 1;
-				wordFreqMap.put(surface, freq);
+	public void load(NgramModelFile file) {
+		if (file.getN() != n)
+			throw new IllegalArgumentException("n of the model file is " + file.getN());
+		int[] globalIds = file.internVocabulary(this.vocabulary);
+		int[] ids = new int[n];
+		for (int k = 0; k < file.getKeyCount(); k++) {
+			for (int i = 0; i < n - 1; i++) {
+				ids[i] = globalIds[file.getKeyId(k, i)];
+			}
+			for (int j = file.getSuccessorStart(k); j < file.getSuccessorEnd(k); j++) {
+				ids[n - 1] = globalIds[file.getSuccessorId(j)];
+				registerNgram(ids, file.getCount(j));
 			}
 		}
 	}
 
+	/**
+	 * 新しく登録されたノードの末尾の単語頻度を加算する
+	 */
+	private void countFrequency(SudachiNode node) {
+		SudachiToken token = node.getLastToken();
+		if (token == null)
+			return;
+		this.wordFreqMap.merge(token.surface(), 1, Integer::sum);
+	}
+
 	public int getFreq(String surface) {
 		Integer freq = this.wordFreqMap.get(surface);
 		return freq == null ? 0 : freq;
 	}
 
+	public int getKeyCount() {
+		return this.trie.getEntryCount();
+	}
+
+	public int getNodeCount() {
+		return this.trie.getNodeCount();
+	}
+
+	/**
+	 * ヒープ上のおおよその使用量 (バイト)
+	 * ノード・キー・ハッシュ表・単語頻度表の大きさから見積もる。キャッシュの上限判定などに使う。
+	 */
+	public long estimateMemoryUsage() {
+		return estimateMemoryUsage(getKeyCount(), getNodeCount(), this.wordFreqMap.size());
+	}
+
+	private long estimateMemoryUsage(long keyCount, long nodeCount, long wordCount) {
+		long nodeBytes = 32 + 16 + 4L * n; // SudachiNode + int[n]
+		long keyBytes = 24 + 32 + 16 + 4L * (n - 1) + 40 + 40; // NgramEntry + SudachiNodeKey + int[n-1] + ArrayList + トライの節点
+		long tableBytes = 8L * 2 * (keyCount * 2 + nodeCount); // 負荷率0.5程度の参照配列 (短い文脈の節点を含めキー1個あたり2個程度)
+		return nodeCount * (nodeBytes + 8) + keyCount * keyBytes + tableBytes + wordCount * 64L;
+	}
+
+	/**
+	 * 出現回数の少ないN-gramを除いた新しいモデルを作る (このモデルは変更しない)
+	 * 各キーの後続ノードは登録順のまま、少なくとも1個は残す。
+	 * 除いた結果、文頭からたどれなくなったキーはその後続ノードごと除く。
+	 * @return 圧縮後のモデルと、除いたN-gramの内訳
+	 */
+	public CompactionReport compact(CompactionOptions options) {
+		List<NgramEntry> entries = new ArrayList<>(this.trie.getEntryCount());
+		this.trie.forEachEntry(entries::add);
+		int topK = options.getTopK();
+
+		// 使用量の目標を超える場合は、収まる最小の下限を二分探索する (残るノード数は下限に対して単調減少)
+		int minCount = options.getMinCount();
+		if (options.getMaxBytes() > 0L
+				&& estimateCompactedBytes(entries, minCount, topK) > options.getMaxBytes()) {
+			int maxFreq = 0;
+			for (NgramEntry entry : entries) {
+				for (SudachiNode node : entry.getValue()) {
+					maxFreq = Math.max(maxFreq, node.getFreq());
+				}
+			}
+			int low = minCount + 1, high = maxFreq + 1; // maxFreq + 1 なら各キー1個だけになる
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (estimateCompactedBytes(entries, mid, topK) <= options.getMaxBytes())
+					high = mid;
+				else
+					low = mid + 1;
+			}
+			minCount = low;
+		}
+
+		NgramLanguageModel compacted = new NgramLanguageModel(n, this.vocabulary);
+		compacted.setTokenizer(this.tokenizer);
+		compacted.setParallelism(this.parallelism);
+		compacted.setTokenizerFactory(this.tokenizerFactory);
+		int droppedByMinCount = 0, droppedByMaxBytes = 0, droppedByTopK = 0, droppedUnreachable = 0;
+		long droppedOccurrences = 0L;
+		Map<NgramEntry, boolean[]> selected = selectReachable(minCount, topK);
+		for (NgramEntry entry : entries) {
+			List<SudachiNode> nodes = entry.getValue();
+			boolean[] kept = selected.get(entry);
+			for (int i = 0; i < nodes.size(); i++) {
+				SudachiNode node = nodes.get(i);
+				if (kept != null && kept[i]) {
+					compacted.registerNgram(node.getIds(), node.getFreq());
+					continue;
+				}
+				droppedOccurrences += node.getFreq();
+				if (kept == null)
+					droppedUnreachable++;
+				else if (node.getFreq() < options.getMinCount())
+					droppedByMinCount++;
+				else if (node.getFreq() < minCount)
+					droppedByMaxBytes++;
+				else
+					droppedByTopK++;
+			}
+		}
+		compacted.buildIndexes();
+		return new CompactionReport(compacted, options, minCount, getKeyCount(), getNodeCount(),
+				droppedByMinCount, droppedByMaxBytes, droppedByTopK, droppedUnreachable, droppedOccurrences,
+				estimateMemoryUsage());
+	}
+
+	private long estimateCompactedBytes(List<NgramEntry> entries, int minCount, int topK) {
+		Map<NgramEntry, boolean[]> selected = selectReachable(minCount, topK);
+		long nodeCount = 0;
+		for (boolean[] kept : selected.values()) {
+			for (boolean k : kept) {
+				if (k)
+					nodeCount++;
+			}
+		}
+		return estimateMemoryUsage(selected.size(), nodeCount, this.wordFreqMap.size());
+	}
+
+	/**
+	 * 文頭キーから、残すノードだけをたどって到達できるキーと、その残す後続ノードを求める
+	 */
+	private Map<NgramEntry, boolean[]> selectReachable(int minCount, int topK) {
+		Map<NgramEntry, boolean[]> selected = new IdentityHashMap<>();
+		Deque<NgramEntry> queue = new ArrayDeque<>();
+		for (Entry<SudachiNodeKey, List<SudachiNode>> head : headIndex().heads) {
+			queue.add((NgramEntry) head);
+			selected.put((NgramEntry) head, null);
+		}
+		while (!queue.isEmpty()) {
+			NgramEntry entry = queue.poll();
+			List<SudachiNode> nodes = entry.getValue();
+			boolean[] kept = selectSuccessors(nodes, minCount, topK);
+			selected.put(entry, kept);
+			for (int i = 0; i < kept.length; i++) {
+				if (!kept[i] || nodes.get(i).isEOS())
+					continue;
+				NgramEntry next = this.trie.getEntry(nodes.get(i).getIds(), 1);
+				if (next != null && !selected.containsKey(next)) {
+					queue.add(next);
+					selected.put(next, null);
+				}
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * 1つのキーについて残す後続ノードを選ぶ
+	 * 出現回数がminCount以上のもののうち上位topK個 (同数は先に登録されたもの)。1個もなければ最も多いものを1個。
+	 */
+	private static boolean[] selectSuccessors(List<SudachiNode> nodes, int minCount, int topK) {
+		boolean[] kept = new boolean[nodes.size()];
+		List<Integer> candidates = new ArrayList<>();
+		int best = 0;
+		for (int i = 0; i < kept.length; i++) {
+			int freq = nodes.get(i).getFreq();
+			if (freq >= minCount)
+				candidates.add(i);
+			if (freq > nodes.get(best).getFreq())
+				best = i;
+		}
+		if (topK > 0 && candidates.size() > topK) {
+			candidates.sort((o1, o2) -> Integer.compare(nodes.get(o2).getFreq(), nodes.get(o1).getFreq()));
+			candidates = candidates.subList(0, topK);
+		}
+		if (candidates.isEmpty() && kept.length > 0)
+			kept[best] = true;
+		for (int i : candidates) {
+			kept[i] = true;
+		}
+		return kept;
+	}
+
 	public void loadDirectory(String directoryPath) {
 		Path directory = Paths.get(directoryPath);
 		loadDirectory(directory);
@@ -89,10 +338,18 @@ public class NgramLanguageModel {
 			System.err.println(directoryPath + " is not a directory!");
 			return;
 		}
-		try {
+		try (ShardWorkers workers = createShardWorkers()) {
 			List<Path> files = Files.list(directoryPath).collect(Collectors.toList());
+			if (workers != null && files.size() > 1) {
+				List<ShardTask> tasks = new ArrayList<>();
+				for (Path file : files) {
+					tasks.add(shard -> shard.loadFile(file));
+				}
+				mergeShards(tasks, workers);
+				return;
+			}
 			for (Path file : files) {
-				loadFile(file);
+				loadFile(file, workers);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -104,18 +361,154 @@ public class NgramLanguageModel {
 		loadFile(Paths.get(filePath));
 	}
 
+	/**
+	 * ファイルを先頭から少しずつ読んで登録する (ファイル全体は読み込まない)
+	 * 並列構築では読んだ分をシャードとしてワーカーに渡し、できたものから順に結合する。結果は全体を一度に読んだ場合と同じになる。
+	 */
 	public void loadFile(Path path) throws IOException {
-		List<String> lines = Files.readAllLines(path);
-		loadLines(lines);
+		try (ShardWorkers workers = createShardWorkers()) {
+			loadFile(path, workers);
+		}
+	}
+
+	private void loadFile(Path path, ShardWorkers workers) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			if (workers != null) {
+				loadInParallel(reader, workers);
+				return;
+			}
+			List<String> chunk = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				chunk.add(line);
+				if (chunk.size() == LINES_PER_CHUNK) {
+					loadLines(chunk, null); // 一度しか解析しない文でキャッシュを埋めない
+					chunk.clear();
+				}
+			}
+			loadLines(chunk, null);
+		}
+	}
+
+	/**
+	 * 読んだ行をシャードごとにワーカーへ渡し、読み進めながら先に渡したものから結合する
+	 * 結合待ちのシャードは並列度の4倍までにして、読み込み中に保持する行をLINES_PER_CHUNK程度に抑える。
+	 */
+	private void loadInParallel(BufferedReader reader, ShardWorkers workers) throws IOException {
+		int maxPending = this.parallelism * 4;
+		int linesPerShard = Math.max(MIN_LINES_PER_SHARD, LINES_PER_CHUNK / maxPending);
+		Deque<Future<NgramLanguageModel>> pending = new ArrayDeque<>();
+		try {
+			List<String> lines = new ArrayList<>(linesPerShard);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+				if (lines.size() == linesPerShard) {
+					List<String> range = lines;
+					pending.add(workers.submit(shard -> shard.loadLines(range)));
+					lines = new ArrayList<>(linesPerShard);
+					if (pending.size() >= maxPending)
+						merge(await(pending.poll()));
+				}
+			}
+			if (!lines.isEmpty()) {
+				List<String> range = lines;
+				pending.add(workers.submit(shard -> shard.loadLines(range)));
+			}
+			while (!pending.isEmpty())
+				merge(await(pending.poll()));
+		} finally {
+			pending.forEach(future -> future.cancel(true));
+		}
 	}
 
 	public void loadLines(List<String> lines) {
-		List<Entry<SudachiNodeKey, SudachiNode>> SudachiNodeEntries = new ArrayList<>();
+		if (lines.size() >= MIN_LINES_PER_SHARD * 2) {
+			try (ShardWorkers workers = createShardWorkers()) {
+				if (workers != null) {
+					loadLinesInParallel(lines, workers);
+					return;
+				}
+			}
+		}
+		loadLines(lines, this.tokenizationCache);
+	}
+
+	private void loadLines(List<String> lines, TokenizationCache cache) {
+		int[] window = new int[n];
 		for (String line : lines) {
-			buildNgramModel(line, SudachiNodeEntries);
+			buildNgramModel(line, window, cache);
+		}
+	}
+
+	private void loadLinesInParallel(List<String> lines, ShardWorkers workers) {
+		int shardCount = Math.min(this.parallelism * 4, lines.size() / MIN_LINES_PER_SHARD);
+		List<ShardTask> tasks = new ArrayList<>();
+		for (int i = 0; i < shardCount; i++) {
+			List<String> range = lines.subList(lines.size() * i / shardCount, lines.size() * (i + 1) / shardCount);
+			tasks.add(shard -> shard.loadLines(range));
+		}
+		mergeShards(tasks, workers);
+	}
+
+	/**
+	 * @return 並列構築のワーカー。並列度が1か、このモデルの語彙表が子の語彙表 (シャード用の子を作れない) ならnull
+	 */
+	private ShardWorkers createShardWorkers() {
+		if (this.parallelism <= 1 || this.vocabulary.isScoped())
+			return null;
+		return new ShardWorkers();
+	}
+
+	/**
+	 * 各シャードを並列に構築し、コーパス中の順番どおりに結合する。
+	 * 後続ノードの並び順と頻度、トークンIDは逐次構築と同じになる。
+	 */
+	private void mergeShards(List<ShardTask> tasks, ShardWorkers workers) {
+		List<Future<NgramLanguageModel>> futures = new ArrayList<>(tasks.size());
+		for (ShardTask task : tasks) {
+			futures.add(workers.submit(task));
+		}
+		try {
+			for (Future<NgramLanguageModel> future : futures) {
+				merge(await(future));
+			}
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
+	}
+
+	private static NgramLanguageModel await(Future<NgramLanguageModel> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while building shards", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("failed to build a shard", e.getCause());
+		}
+	}
+
+	/**
+	 * シャードの内容を加える
+	 * シャードの子の語彙表に登録した語は、シャード内の初出順 (ID順) に共有の語彙表へ登録し、
+	 * ノードもシャードで作った順に登録するので、逐次構築と同じIDと登録順になる。
+	 */
+	private void merge(NgramLanguageModel shard) {
+		List<SudachiToken> scoped = shard.vocabulary.getScopedTokens();
+		int[] remap = new int[scoped.size()];
+		for (int i = 0; i < remap.length; i++) {
+			remap[i] = this.vocabulary.intern(scoped.get(i)).getId();
+		}
+		int[] ids = new int[n];
+		for (SudachiNode node : shard.createdNodes) {
+			int[] shardIds = node.getIds();
+			for (int i = 0; i < n; i++) {
+				ids[i] = shardIds[i] >= Vocabulary.SCOPED_ID_BASE ? remap[shardIds[i] - Vocabulary.SCOPED_ID_BASE]
+						: shardIds[i];
+			}
+			registerNgram(ids, node.getFreq());
 		}
-		registerNgram(SudachiNodeEntries);
-		countFrequency();
 	}
 
 	private String trim(String line) {
@@ -124,111 +517,380 @@ public class NgramLanguageModel {
 		return line;
 	}
 
-	private void buildNgramModel(String line, List<Entry<SudachiNodeKey, SudachiNode>> SudachiNodeEntries) {
+	private void buildNgramModel(String line, int[] window, TokenizationCache cache) {
 		if (tokenizer == null) {
 
 		}
 		try {
-			// n = 3 -> [null, A, B], [A, B, C], [B, C, null]
-			line = trim(line);
-			List<Morpheme> tokens = tokenizer.tokenize(line.replace("\t", ""));
-			int SudachiNodeSize = tokens.size() - n + 1 + 1; // 文頭表現と文末表現の分をそれぞれ1回ずつ足す
-
-			for (int i = -1; i < SudachiNodeSize; i++) {
-				Morpheme data[] = new Morpheme[n];
-
-				if (i == -1) { // 文頭
-					for (int j = 1; j < data.length && i + j < tokens.size(); j++) {
-						data[j] = tokens.get(i + j);
-					}
-				} else if (i == SudachiNodeSize - 1) { // 文末
-					for (int j = 0; j < data.length - 1 && i + j < tokens.size(); j++) {
-						data[j] = tokens.get(i + j);
-					}
-				} else {
-					for (int j = 0; j < data.length && i + j < tokens.size(); j++) {
-						data[j] = tokens.get(i + j);
-					}
+			line = trim(line).replace("\t", "");
+			int[] tokens;
+			if (cache != null) {
+				SudachiToken[] cached = cache.tokenize(line, tokenizer);
+				tokens = new int[cached.length];
+				for (int i = 0; i < tokens.length; i++) {
+					tokens[i] = this.vocabulary.intern(cached[i]).getId();
+				}
+			} else {
+				List<Morpheme> morphemes = tokenizer.tokenize(line);
+				tokens = new int[morphemes.size()];
+				for (int i = 0; i < tokens.length; i++) {
+					tokens[i] = this.vocabulary.id(morphemes.get(i));
 				}
-
-				SudachiNodeKey key = new SudachiNodeKey(data);
-				SudachiNode value = new SudachiNode(data);
-				SudachiNodeEntries.add(new SimpleEntry<>(key, value));
 			}
+			buildNgramModel(tokens, window);
 		} catch (IllegalArgumentException e) {
 		}
 	}
 
-	private void registerNgram(List<Entry<SudachiNodeKey, SudachiNode>> SudachiNodeEntries) {
-		while (SudachiNodeEntries.size() > 0) {
-			SudachiNodeKey targetKey = SudachiNodeEntries.get(0).getKey();
-			List<SudachiNode> SudachiNodeList = this.chainMap.get(targetKey);
-			if (SudachiNodeList == null) {
-				SudachiNodeList = new ArrayList<>();
-				this.chainMap.put(targetKey, SudachiNodeList);
+	/**
+	 * 形態素解析済みの文から言語モデルを作る (形態素解析器を使わない)
+	 * @param lines このモデルの語彙でinternしたトークン列
+	 */
+	public void loadTokenizedLines(List<SudachiToken[]> lines) {
+		int[] window = new int[n];
+		for (SudachiToken[] line : lines) {
+			int[] tokens = new int[line.length];
+			for (int i = 0; i < tokens.length; i++) {
+				tokens[i] = line[i].getId();
 			}
-			List<Entry<SudachiNodeKey, SudachiNode>> copies = new ArrayList<>(SudachiNodeEntries);
-			int count = 0;
-			for (int i = 0; i < copies.size(); i++) {
-				Entry<SudachiNodeKey, SudachiNode> entry = copies.get(i);
-				SudachiNodeKey key = entry.getKey();
-				if (!key.equals(targetKey)) {
-					continue;
+			buildNgramModel(tokens, window);
+		}
+	}
+
+	private void buildNgramModel(int[] tokens, int[] window) {
+		// n = 3 -> [null, A, B], [A, B, C], [B, C, null]
+		int SudachiNodeSize = tokens.length - n + 1 + 1; // 文頭表現と文末表現の分をそれぞれ1回ずつ足す
+
+		for (int i = -1; i < SudachiNodeSize; i++) {
+			Arrays.fill(window, Vocabulary.BOUNDARY); // 0 (Vocabulary.BOUNDARY) は文頭・文末
+
+			if (i == -1) { // 文頭
+				for (int j = 1; j < window.length && i + j < tokens.length; j++) {
+					window[j] = tokens[i + j];
+				}
+			} else if (i == SudachiNodeSize - 1) { // 文末
+				for (int j = 0; j < window.length - 1 && i + j < tokens.length; j++) {
+					window[j] = tokens[i + j];
 				}
-				SudachiNode value = entry.getValue();
-				int index = SudachiNodeList.indexOf(value);
-				if (index == -1) {
-					SudachiNodeList.add(value);
-				} else {
-					value = SudachiNodeList.get(index);
-					value.addFreq();
+			} else {
+				for (int j = 0; j < window.length && i + j < tokens.length; j++) {
+					window[j] = tokens[i + j];
 				}
-				//				System.out.println(
-				//						"key:" + key + " - " + ", value:" + value + ", freq:" + value.getFreq() + " "
-				//								+ Thread.currentThread().getStackTrace()[1]);
-				SudachiNodeEntries.remove(i - count++);
 			}
+
+			registerNgram(window, 1);
 		}
+	}
 
+	/**
+	 * 利用中のモデルに文を追加する (このモデルの形態素解析器を使う)
+	 * @see #append(NgramLanguageModel)
+	 */
+	public void appendLines(List<String> lines) {
+		NgramLanguageModel delta = new NgramLanguageModel(n, this.vocabulary);
+		delta.setTokenizer(this.tokenizer);
+		delta.loadLines(lines);
+		append(delta);
 	}
 
-	public List<Entry<SudachiNodeKey, List<SudachiNode>>> findHead() {
-		List<Entry<SudachiNodeKey, List<SudachiNode>>> heads = new ArrayList<>();
-		for (Entry<SudachiNodeKey, List<SudachiNode>> entry : chainMap.entrySet()) {
-			SudachiNodeKey key = entry.getKey();
-			if (key.isBOS()) {
-				heads.add(entry);
+	/**
+	 * 別に作ったモデル (同じ語彙・同じN) の内容を、利用中のモデルに加える。
+	 * 生成中のスレッドが同時に参照していてもよい (書き込みは同時に1つだけ)。
+	 * 変更のあったキーだけ後続ノード一覧を作り直して差し替え、標本抽出用の表と文頭索引もそのキーの分だけ更新する。
+	 */
+	public synchronized void append(NgramLanguageModel delta) {
+		if (delta.n != n || delta.vocabulary != this.vocabulary)
+			throw new IllegalArgumentException("the delta model must share n and the vocabulary");
+		List<NgramEntry> changedHeads = new ArrayList<>();
+		delta.trie.forEachEntry(deltaEntry -> {
+			NgramEntry current = this.trie.getEntry(deltaEntry.getKeyIds(), 0);
+			// 参照中の一覧は変更せず、コピーに追加したものと差し替える
+			List<SudachiNode> nodes = current == null ? new ArrayList<>()
+					: new ArrayList<>(current.getValue());
+			for (SudachiNode deltaNode : deltaEntry.getValue()) {
+				SudachiNode node = this.trie.getNode(deltaNode.getIds(), 0);
+				if (node != null) {
+					node.addFreq(deltaNode.getFreq());
+					continue;
+				}
+				node = new SudachiNode(deltaNode.getIds().clone(), this.vocabulary);
+				node.addFreq(deltaNode.getFreq() - 1);
+				this.trie.putNode(node);
+				nodes.add(node);
+				countFrequency(node);
 			}
+			NgramEntry replaced = new NgramEntry(
+					current == null ? deltaEntry.getKey() : current.getKey(), nodes);
+			replaced.getSampler();
+			this.trie.putEntry(replaced);
+			if (replaced.getKey().isBOS())
+				changedHeads.add(replaced);
+		});
+		if (!changedHeads.isEmpty())
+			this.headIndex = headIndex().update(changedHeads);
+		invalidateReachabilityIndex();
+	}
+
+	/**
+	 * N-gramの出現回数を加算する。初出の場合はノードを登録し、単語頻度も更新する。
+	 * (一覧をその場で変更するため、モデルの構築中にだけ使う。利用中のモデルにはappendを使う)
+	 * @param ids N個のトークンID (初出の場合のみコピーされる)
+	 */
+	private SudachiNode registerNgram(int[] ids, int count) {
+		NgramEntry entry = this.trie.getEntry(ids, 0);
+		SudachiNode node = this.trie.getNode(ids, 0);
+		invalidateReachabilityIndex();
+		if (node != null) {
+			node.addFreq(count);
+			entry.invalidate();
+			return node;
 		}
-		return heads;
+		node = new SudachiNode(ids.clone(), this.vocabulary);
+		node.addFreq(count - 1);
+		this.trie.putNode(node);
+		if (entry == null) {
+			entry = new NgramEntry(new SudachiNodeKey(ids, 0, n - 1, this.vocabulary));
+			this.trie.putEntry(entry);
+		}
+		entry.getValue().add(node);
+		entry.invalidate();
+		if (entry.getKey().isBOS())
+			this.headIndex = null;
+		countFrequency(node);
+		if (this.createdNodes != null)
+			this.createdNodes.add(node);
+		return node;
+	}
+
+	public List<Entry<SudachiNodeKey, List<SudachiNode>>> findHead() {
+		return headIndex().heads;
+	}
+
+	/**
+	 * 後続ノード数がminより多い文頭キーを、後続ノード数の多い順に返す (先頭から必要な数だけ使う)
+	 */
+	public List<Entry<SudachiNodeKey, List<SudachiNode>>> findHead(int min) {
+		return headIndex().findHead(min);
+	}
+
+	private HeadIndex headIndex() {
+		HeadIndex index = this.headIndex;
+		if (index == null) {
+			List<NgramEntry> heads = new ArrayList<>();
+			trie.forEachEntry(entry -> {
+				if (entry.getKey().isBOS()) {
+					heads.add(entry);
+				}
+			});
+			index = new HeadIndex(heads);
+			this.headIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * 検索用の索引と各キーの標本抽出用の表をまとめて作る
+	 */
+	private void buildIndexes() {
+		headIndex();
+		this.trie.forEachEntry(entry -> {
+			entry.getSampler();
+			entry.getReplacementBuckets();
+		});
 	}
 
 	public SudachiNode findNextSample(SudachiNode SudachiNode) {
-		SudachiNodeKey key = convertToSudachiNodeKey(SudachiNode);
-		List<SudachiNode> candidates = findNextCandidates(key);
-		if (candidates == null)
+		return findNextSample(SudachiNode, SamplingPolicy.UNIFORM, RANDOM.get());
+	}
+
+	/**
+	 * 前計算済みの表から後続ノードを1つ選ぶ (O(1))
+	 * @param policy TOP_Kの場合は出現回数の上位TOP_K個から選ぶ
+	 */
+	public SudachiNode findNextSample(SudachiNode SudachiNode, SamplingPolicy policy, SplittableRandom rnd) {
+		SuccessorSampler sampler = findNextSampler(SudachiNode);
+		if (sampler == null)
 			return null;
-		return candidates.get(new Random().nextInt(candidates.size()));
+		return sampler.sample(policy, TOP_K, rnd);
 	}
 
-	private SudachiNodeKey convertToSudachiNodeKey(SudachiNode SudachiNode) {
-		Morpheme[] tokens = SudachiNode.getValue();
-		Morpheme[] keyMorphemes = new Morpheme[tokens.length];
-		for (int i = 0; i < n - 1; i++) {
-			keyMorphemes[i] = tokens[i + 1];
-		}
-		return new SudachiNodeKey(keyMorphemes);
+	SuccessorSampler findNextSampler(SudachiNode SudachiNode) {
+		NgramEntry entry = trie.getEntry(SudachiNode.getIds(), 1);
+		return entry == null ? null : entry.getSampler();
 	}
 
+	/**
+	 * ノードの後ろN-1個のトークンをキーとして後続ノードを探索する (キーオブジェクトは生成しない)
+	 */
 	public List<SudachiNode> findNextCandidates(SudachiNode SudachiNode) {
-		return findNextCandidates(convertToSudachiNodeKey(SudachiNode));
+		NgramEntry entry = trie.getEntry(SudachiNode.getIds(), 1);
+		return entry == null ? null : entry.getValue();
+	}
+
+	/**
+	 * 短い文脈での後続ノードを返す (キーの後続ノードを使い切った場合のバックオフ)
+	 * キーの後ろN-2個が同じ他のキーの後続ノードを、nodeに続くノード (出現回数はその文脈での合計、初出順) にする。
+	 * filterを通るものがなければ、文脈を1個ずつ短くして探す。作ったノードはモデルには登録しない。
+	 * @return filterを通ったノード。なければ空
+	 */
+	public List<SudachiNode> findBackoffCandidates(SudachiNode node, Predicate<SudachiNode> filter) {
+		List<SudachiNode> candidates = new ArrayList<>();
+		if (node.isEOS())
+			return candidates;
+		int[] ids = node.getIds();
+		for (int depth = n - 2; depth >= Math.min(1, n - 2) && candidates.isEmpty(); depth--) {
+			Map<Integer, SudachiNode> found = new LinkedHashMap<>();
+			trie.forEachBackoffEntry(ids, 1, depth, MAX_BACKOFF_KEYS, entry -> {
+				for (SudachiNode successor : entry.getValue()) {
+					SudachiNode candidate = found.get(successor.getLastId());
+					if (candidate == null) {
+						int[] nextIds = Arrays.copyOfRange(ids, 1, n + 1);
+						nextIds[n - 1] = successor.getLastId();
+						candidate = new SudachiNode(nextIds, this.vocabulary);
+						candidate.addFreq(successor.getFreq() - 1);
+						found.put(successor.getLastId(), candidate);
+					} else {
+						candidate.addFreq(successor.getFreq());
+					}
+				}
+			});
+			for (SudachiNode candidate : found.values()) {
+				if (filter.test(candidate))
+					candidates.add(candidate);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * ノードと同じキー(先頭N-1個のトークン)を持つノードの一覧を返す
+	 */
+	public List<SudachiNode> findSiblingCandidates(SudachiNode SudachiNode) {
+		NgramEntry entry = trie.getEntry(SudachiNode.getIds(), 0);
+		return entry == null ? null : entry.getValue();
+	}
+
+	/**
+	 * ids[offset]からN-1個をキーとして後続ノードを探索する
+	 */
+	List<SudachiNode> findCandidates(int[] ids, int offset) {
+		NgramEntry entry = trie.getEntry(ids, offset);
+		return entry == null ? null : entry.getValue();
+	}
+
+	void forEachEntry(BiConsumer<int[], List<SudachiNode>> action) {
+		trie.forEachEntry(entry -> action.accept(entry.getKeyIds(), entry.getValue()));
+	}
+
+	/**
+	 * 置換処理の候補: keyNodeの後続ノードのうち、末尾の品詞がposClassと一致するもの (助詞と文末は除く)
+	 */
+	SudachiNode[] findNextReplacements(SudachiNode keyNode, int posClass) {
+		NgramEntry entry = trie.getEntry(keyNode.getIds(), 1);
+		return entry == null ? null : entry.getReplacementBuckets().get(posClass);
+	}
+
+	/**
+	 * findNextReplacementsの文頭版: nodeと同じキーを持つノードから探す
+	 */
+	SudachiNode[] findSiblingReplacements(SudachiNode node, int posClass) {
+		NgramEntry entry = trie.getEntry(node.getIds(), 0);
+		return entry == null ? null : entry.getReplacementBuckets().get(posClass);
 	}
 
 	public List<SudachiNode> findNextCandidates(SudachiNodeKey key) {
-		//		System.out.println("key:" + key + " = " + chainMap.get(key));
-		if (chainMap == null)
-			return null;
-		return chainMap.get(key);
+		NgramEntry entry = trie.getEntry(key.getIds(), 0);
+		return entry == null ? null : entry.getValue();
+	}
+
+	private interface ShardTask {
+		void load(NgramLanguageModel shard) throws IOException;
+	}
+
+	/**
+	 * 並列構築のスレッドと、スレッドごとの形態素解析器
+	 * loadFile・loadDirectory・loadLinesの1回の呼び出しで作り、全てのシャードで使い回す (ファイルを読み終えるまで同じスレッドが働く)。
+	 */
+	private final class ShardWorkers implements AutoCloseable {
+		private final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		private final ThreadLocal<SudachiTokenizer> tokenizers = ThreadLocal.withInitial(tokenizerFactory);
+
+		/**
+		 * シャードは共有の語彙表の子の語彙表で作る (新しい語のIDが他のシャードとの競合で決まらないように)
+		 */
+		Future<NgramLanguageModel> submit(ShardTask task) {
+			return this.pool.submit(() -> {
+				NgramLanguageModel shard = new NgramLanguageModel(n, vocabulary.createScope());
+				shard.createdNodes = new ArrayList<>();
+				shard.setTokenizer(this.tokenizers.get());
+				task.load(shard);
+				return shard;
+			});
+		}
+
+		@Override
+		public void close() {
+			this.pool.shutdown();
+		}
+	}
+
+	/**
+	 * 文頭キーを後続ノード数の降順に並べた索引
+	 */
+	private static class HeadIndex {
+		private final List<Entry<SudachiNodeKey, List<SudachiNode>>> heads;
+		private final int[] sizes;
+
+		HeadIndex(List<NgramEntry> entries) {
+			entries.sort((o1, o2) -> {
+				int cmp = Integer.compare(o2.getValue().size(), o1.getValue().size());
+				return cmp != 0 ? cmp : compareIds(o1.getKeyIds(), o2.getKeyIds());
+			});
+			this.heads = Collections.unmodifiableList(new ArrayList<>(entries));
+			this.sizes = new int[entries.size()];
+			for (int i = 0; i < sizes.length; i++) {
+				this.sizes[i] = entries.get(i).getValue().size();
+			}
+		}
+
+		List<Entry<SudachiNodeKey, List<SudachiNode>>> findHead(int min) {
+			// sizesは降順なので、min以下になる最初の位置を二分探索する
+			int low = 0, high = this.sizes.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (this.sizes[mid] > min)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return this.heads.subList(0, low);
+		}
+
+		/**
+		 * 変更のあった文頭キーを差し替えた索引を作る
+		 */
+		HeadIndex update(List<NgramEntry> changed) {
+			Set<SudachiNodeKey> changedKeys = new HashSet<>();
+			for (NgramEntry entry : changed) {
+				changedKeys.add(entry.getKey());
+			}
+			List<NgramEntry> entries = new ArrayList<>(this.heads.size() + changed.size());
+			for (Entry<SudachiNodeKey, List<SudachiNode>> head : this.heads) {
+				if (!changedKeys.contains(head.getKey()))
+					entries.add((NgramEntry) head);
+			}
+			entries.addAll(changed);
+			return new HeadIndex(entries);
+		}
+
+		private static int compareIds(int[] a, int[] b) {
+			for (int i = 0; i < a.length; i++) {
+				int cmp = Integer.compare(a[i], b[i]);
+				if (cmp != 0)
+					return cmp;
+			}
+			return 0;
+		}
 	}
 
 }
@@ -0,0 +1,145 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * 文生成が特徴言語モデルとして参照する検索操作
+ * ヒープ上のNgramLanguageModelと、ファイルをメモリマップしたOffHeapNgramModelがある。
+ * (索引を返す操作はパッケージ内だけで使うため、インタフェースではなく抽象クラスにしている)
+ * @author kawami
+ *
+ */
+public abstract class NgramModel {
+	/**
+	 * 到達可能性索引の作り直し用 (全モデルで1スレッド)
+	 */
+	private static final ExecutorService REBUILD_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "reachability-index");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private volatile ReachabilityIndex reachabilityIndex;
+	private volatile boolean reachabilityStale; // 索引を作った後にモデルが変わった
+	private final AtomicBoolean reachabilityRebuilding = new AtomicBoolean();
+
+	public abstract int getN();
+
+	public abstract Vocabulary getVocabulary();
+
+	/**
+	 * ノードの後ろN-1個のトークンをキーとして後続ノードを探索する
+	 * @return 登録順の後続ノード (変更しないこと)。なければnull
+	 */
+	public abstract List<SudachiNode> findNextCandidates(SudachiNode node);
+
+	/**
+	 * ノードと同じキー(先頭N-1個のトークン)を持つノードの一覧を返す
+	 */
+	public abstract List<SudachiNode> findSiblingCandidates(SudachiNode node);
+
+	/**
+	 * 後続ノード数がminより多い文頭キーを、後続ノード数の多い順に返す
+	 */
+	public abstract List<Entry<SudachiNodeKey, List<SudachiNode>>> findHead(int min);
+
+	/**
+	 * @return 表層形が末尾に来るN-gramの種類数
+	 */
+	public abstract int getFreq(String surface);
+
+	/**
+	 * 利用中のモデルに別のモデルのN-gramを加える (生成中のリクエストからも読める)
+	 */
+	public abstract void append(NgramLanguageModel delta);
+
+	public abstract void save(String path);
+
+	/**
+	 * 置換処理の候補: keyNodeの後続ノードのうち、末尾の品詞がposClassと一致するもの (助詞と文末は除く)
+	 */
+	abstract SudachiNode[] findNextReplacements(SudachiNode keyNode, int posClass);
+
+	/**
+	 * findNextReplacementsの文頭版: nodeと同じキーを持つノードから探す
+	 */
+	abstract SudachiNode[] findSiblingReplacements(SudachiNode node, int posClass);
+
+	/**
+	 * 各キーからmaxLength個以内のノードで到達できる形態素と、その最良の経路の索引を返す
+	 * prepareReachabilityIndexで作っていなければ、初回 (とmaxLengthが変わった場合) だけ呼び出したスレッドで作る。
+	 * 作った後にモデルが変わった場合は、古い索引を返しながら別スレッドで作り直し、できたら差し替える。
+	 * @return 索引。別スレッドで初めて作っている最中ならnull
+	 */
+	ReachabilityIndex getReachabilityIndex(int maxLength) {
+		ReachabilityIndex index = this.reachabilityIndex;
+		if (index != null && index.getMaxLength() == maxLength) {
+			if (this.reachabilityStale && this.reachabilityRebuilding.compareAndSet(false, true))
+				REBUILD_EXECUTOR.execute(() -> rebuildReachabilityIndex(maxLength));
+			return index;
+		}
+		if (this.reachabilityRebuilding.get())
+			return null;
+		synchronized (this) {
+			// 作成は重いので、同時に呼ばれても1回だけ作る
+			index = this.reachabilityIndex;
+			if (index == null || index.getMaxLength() != maxLength) {
+				this.reachabilityStale = false;
+				index = buildReachabilityIndex(maxLength);
+				this.reachabilityIndex = index;
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * 到達可能性索引がないか、作った後にモデルが変わっていれば、別スレッドで作る
+	 * 読み込みや追加の後に呼んでおけば、文生成のリクエストが索引の作成を待たずに済む。
+	 */
+	public void prepareReachabilityIndex(int maxLength) {
+		ReachabilityIndex index = this.reachabilityIndex;
+		if (index != null && index.getMaxLength() == maxLength && !this.reachabilityStale)
+			return;
+		if (this.reachabilityRebuilding.compareAndSet(false, true))
+			REBUILD_EXECUTOR.execute(() -> rebuildReachabilityIndex(maxLength));
+	}
+
+	/**
+	 * モデルが変わったことを到達可能性索引に知らせる (追加処理の同期ブロック内から呼ぶ)
+	 */
+	void invalidateReachabilityIndex() {
+		this.reachabilityStale = true;
+	}
+
+	private void rebuildReachabilityIndex(int maxLength) {
+		try {
+			// 作成中のモデルへの追加は待たせる (生成のリクエストは古い索引を使う)
+			synchronized (this) {
+				this.reachabilityStale = false;
+				this.reachabilityIndex = buildReachabilityIndex(maxLength);
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		} finally {
+			this.reachabilityRebuilding.set(false);
+		}
+	}
+
+	private ReachabilityIndex buildReachabilityIndex(int maxLength) {
+		ReachabilityIndex index = new ReachabilityIndex(this, maxLength);
+		if (index.isFull())
+			System.err.println("reachability index is full: kept " + index.size()
+					+ " connections with score > " + index.getMinScore());
+		return index;
+	}
+
+	/**
+	 * 全てのキーと、その後続ノードの一覧を順に渡す
+	 */
+	abstract void forEachEntry(BiConsumer<int[], List<SudachiNode>> action);
+}
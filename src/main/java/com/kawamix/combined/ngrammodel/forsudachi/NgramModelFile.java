@@ -0,0 +1,367 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * N-gram言語モデルのバイナリ形式
+ *
+ * <pre>
+ * int    magic ("HNGM"), version, n, vocabularySize (V), keyCount (K), nodeCount (M)
+ * int[V+1]     語彙文字列のオフセット (ローカルID 0 は文頭・文末で空)
+ * byte[]       語彙文字列 (UTF-8, "表層形\t品詞1\t品詞2...")
+ * int[K*(N-1)] キーのローカルID列 (辞書順にソート済み)
+ * int[K+1]     各キーの後続ノードの開始位置
+ * int[M]       後続ノードの末尾のローカルID (登録順)
+ * int[M]       後続ノードの出現回数
+ * </pre>
+ *
+ * ファイルはFileChannel.mapで開き、読み込み後もバッファ上でそのまま検索できる。
+ * 開く際にヘッダーの値と各ID・位置の範囲を確かめ、壊れたファイルはIOExceptionにする。
+ * 書き出しは一時ファイルに書いてから置き換えるので、途中で失敗しても元のファイルは残る。
+ * @author kawami
+ *
+ */
+public class NgramModelFile {
+	private static final int MAGIC = 0x484E474D;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 6 * 4;
+
+	private final int n;
+	private final int vocabularySize;
+	private final int keyCount;
+	private final int nodeCount;
+	private final IntBuffer stringOffsets;
+	private final ByteBuffer strings;
+	private final IntBuffer keys;
+	private final IntBuffer offsets;
+	private final IntBuffer successors;
+	private final IntBuffer counts;
+
+	private NgramModelFile(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("not an n-gram model file");
+		int version = buffer.getInt(4);
+		if (version != VERSION)
+			throw new IOException("unsupported n-gram model version: " + version);
+		this.n = buffer.getInt(8);
+		this.vocabularySize = buffer.getInt(12);
+		this.keyCount = buffer.getInt(16);
+		this.nodeCount = buffer.getInt(20);
+		if (n < 2 || vocabularySize < 1 || keyCount < 0 || nodeCount < 0)
+			throw new IOException("corrupt n-gram model header: n=" + n + ", vocabulary=" + vocabularySize
+					+ ", keys=" + keyCount + ", nodes=" + nodeCount);
+
+		// 各部分の大きさはintを超えうるのでlongで計算する (sliceで範囲を確かめる)
+		long position = HEADER_SIZE;
+		this.stringOffsets = slice(buffer, position, (vocabularySize + 1L) * 4).asIntBuffer();
+		position += (vocabularySize + 1L) * 4;
+		int stringsSize = this.stringOffsets.get(vocabularySize);
+		this.strings = slice(buffer, position, stringsSize);
+		position += stringsSize;
+		this.keys = slice(buffer, position, (long) keyCount * (n - 1) * 4).asIntBuffer();
+		position += (long) keyCount * (n - 1) * 4;
+		this.offsets = slice(buffer, position, (keyCount + 1L) * 4).asIntBuffer();
+		position += (keyCount + 1L) * 4;
+		this.successors = slice(buffer, position, nodeCount * 4L).asIntBuffer();
+		position += nodeCount * 4L;
+		this.counts = slice(buffer, position, nodeCount * 4L).asIntBuffer();
+		validate();
+	}
+
+	/**
+	 * オフセットが単調で範囲内にあり、IDが語彙数未満であることを確かめる (検索時に範囲外を読まないように)
+	 */
+	private void validate() throws IOException {
+		int previous = 0;
+		for (int i = 0; i <= vocabularySize; i++) {
+			int offset = this.stringOffsets.get(i);
+			if (offset < previous || offset > this.strings.capacity())
+				throw new IOException("corrupt n-gram model vocabulary offset at " + i + ": " + offset);
+			previous = offset;
+		}
+		for (int i = 0; i < this.keys.capacity(); i++)
+			checkId(this.keys.get(i), "key");
+		previous = 0;
+		for (int i = 0; i <= keyCount; i++) {
+			int offset = this.offsets.get(i);
+			if (offset < previous || offset > nodeCount || (i == keyCount && offset != nodeCount))
+				throw new IOException("corrupt n-gram model successor offset at " + i + ": " + offset);
+			previous = offset;
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			checkId(this.successors.get(i), "successor");
+			if (this.counts.get(i) < 1)
+				throw new IOException("corrupt n-gram model count at " + i + ": " + this.counts.get(i));
+		}
+	}
+
+	private void checkId(int id, String kind) throws IOException {
+		if (id < 0 || id >= vocabularySize)
+			throw new IOException("corrupt n-gram model " + kind + " id: " + id + " (vocabulary " + vocabularySize
+					+ ")");
+	}
+
+	/**
+	 * ファイルをメモリマップして開く
+	 */
+	public static NgramModelFile open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("n-gram model file too large to map: " + channel.size() + " bytes");
+			return new NgramModelFile(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	public static NgramModelFile wrap(ByteBuffer buffer) throws IOException {
+		return new NgramModelFile(buffer.duplicate());
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, long position, long length) throws IOException {
+		if (length < 0 || position + length > buffer.limit())
+			throw new IOException("truncated n-gram model file");
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position((int) position);
+		duplicate.limit((int) (position + length));
+		return duplicate.slice();
+	}
+
+	public int getN() {
+		return this.n;
+	}
+
+	public int getVocabularySize() {
+		return this.vocabularySize;
+	}
+
+	public int getKeyCount() {
+		return this.keyCount;
+	}
+
+	public int getNodeCount() {
+		return this.nodeCount;
+	}
+
+	/**
+	 * @param localId ファイル内のトークンID (1以上)
+	 */
+	public String getSurface(int localId) {
+		String[] fields = readToken(localId);
+		return fields[0];
+	}
+
+	public List<String> getPartOfSpeech(int localId) {
+		String[] fields = readToken(localId);
+		return Arrays.asList(fields).subList(1, fields.length);
+	}
+
+	private String[] readToken(int localId) {
+		int start = this.stringOffsets.get(localId);
+		int end = this.stringOffsets.get(localId + 1);
+		byte[] bytes = new byte[end - start];
+		ByteBuffer duplicate = this.strings.duplicate();
+		duplicate.position(start);
+		duplicate.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8).split("\t", -1);
+	}
+
+	public int getKeyId(int keyIndex, int position) {
+		return this.keys.get(keyIndex * (n - 1) + position);
+	}
+
+	public int getSuccessorStart(int keyIndex) {
+		return this.offsets.get(keyIndex);
+	}
+
+	public int getSuccessorEnd(int keyIndex) {
+		return this.offsets.get(keyIndex + 1);
+	}
+
+	public int getSuccessorId(int nodeIndex) {
+		return this.successors.get(nodeIndex);
+	}
+
+	public int getCount(int nodeIndex) {
+		return this.counts.get(nodeIndex);
+	}
+
+	/**
+	 * キーを二分探索する
+	 * @param localIds ローカルIDのキーを含む配列
+	 * @param offset キーの開始位置 (localIds[offset]からN-1個)
+	 * @return キーの番号。見つからなければ-1
+	 */
+	public int findKey(int[] localIds, int offset) {
+		int low = 0, high = this.keyCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareKey(mid, localIds, offset);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	private int compareKey(int keyIndex, int[] localIds, int offset) {
+		int base = keyIndex * (n - 1);
+		for (int i = 0; i < n - 1; i++) {
+			int cmp = Integer.compare(this.keys.get(base + i), localIds[offset + i]);
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	/**
+	 * 言語モデルをバイナリ形式で書き出す
+	 * 同じディレクトリの一時ファイルに書き、書き終えてから置き換える。
+	 */
+	static void write(Path path, int n, Vocabulary vocabulary, List<NgramEntry> entries) throws IOException {
+		if (vocabulary.isScoped())
+			throw new IllegalArgumentException("a model on a scoped vocabulary cannot be saved");
+		// 使われているトークンだけにローカルIDを振る
+		int[] localIds = new int[vocabulary.size()];
+		List<Integer> globalIds = new ArrayList<>();
+		globalIds.add(Vocabulary.BOUNDARY);
+		int nodeCount = 0;
+		for (NgramEntry entry : entries) {
+			for (int id : entry.getKeyIds())
+				assignLocalId(id, localIds, globalIds);
+			for (SudachiNode node : entry.getValue())
+				assignLocalId(node.getLastId(), localIds, globalIds);
+			nodeCount += entry.getValue().size();
+		}
+
+		List<int[]> localKeys = new ArrayList<>(entries.size());
+		List<NgramEntry> sorted = new ArrayList<>(entries);
+		for (NgramEntry entry : entries) {
+			int[] keyIds = entry.getKeyIds();
+			int[] local = new int[keyIds.length];
+			for (int i = 0; i < local.length; i++)
+				local[i] = localIds[keyIds[i]];
+			localKeys.add(local);
+		}
+		Integer[] order = new Integer[entries.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> compareIds(localKeys.get(a), localKeys.get(b)));
+		for (int i = 0; i < order.length; i++)
+			sorted.set(i, entries.get(order[i]));
+
+		List<byte[]> tokenBytes = new ArrayList<>(globalIds.size());
+		tokenBytes.add(new byte[0]);
+		for (int i = 1; i < globalIds.size(); i++) {
+			SudachiToken token = vocabulary.get(globalIds.get(i));
+			StringBuilder sb = new StringBuilder(token.surface());
+			for (String pos : token.partOfSpeech()) {
+				sb.append('\t');
+				sb.append(pos);
+			}
+			tokenBytes.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		Path directory = path.toAbsolutePath().getParent();
+		Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+		boolean written = false;
+		try {
+			writeTo(temporary, n, globalIds.size(), tokenBytes, localKeys, order, sorted, nodeCount, localIds);
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			written = true;
+		} finally {
+			if (!written)
+				Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static void writeTo(Path path, int n, int vocabularySize, List<byte[]> tokenBytes,
+			List<int[]> localKeys, Integer[] order, List<NgramEntry> sorted, int nodeCount, int[] localIds)
+			throws IOException {
+		try (OutputStream os = Files.newOutputStream(path);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(n);
+			out.writeInt(vocabularySize);
+			out.writeInt(sorted.size());
+			out.writeInt(nodeCount);
+
+			int stringOffset = 0;
+			for (byte[] bytes : tokenBytes) {
+				out.writeInt(stringOffset);
+				stringOffset += bytes.length;
+			}
+			out.writeInt(stringOffset);
+			for (byte[] bytes : tokenBytes)
+				out.write(bytes);
+
+			for (int i = 0; i < order.length; i++) {
+				for (int id : localKeys.get(order[i]))
+					out.writeInt(id);
+			}
+			int nodeOffset = 0;
+			for (NgramEntry entry : sorted) {
+				out.writeInt(nodeOffset);
+				nodeOffset += entry.getValue().size();
+			}
+			out.writeInt(nodeOffset);
+			for (NgramEntry entry : sorted) {
+				for (SudachiNode node : entry.getValue())
+					out.writeInt(localIds[node.getLastId()]);
+			}
+			for (NgramEntry entry : sorted) {
+				for (SudachiNode node : entry.getValue())
+					out.writeInt(node.getFreq());
+			}
+		}
+	}
+
+	private static void assignLocalId(int id, int[] localIds, List<Integer> globalIds) {
+		if (id == Vocabulary.BOUNDARY || localIds[id] != 0)
+			return;
+		localIds[id] = globalIds.size();
+		globalIds.add(id);
+	}
+
+	private static int compareIds(int[] a, int[] b) {
+		for (int i = 0; i < a.length; i++) {
+			int cmp = Integer.compare(a[i], b[i]);
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	/**
+	 * ファイル内のトークンを語彙表に登録し、ローカルIDから語彙表のIDへの変換表を返す
+	 */
+	int[] internVocabulary(Vocabulary vocabulary) {
+		int[] globalIds = new int[this.vocabularySize];
+		for (int i = 1; i < this.vocabularySize; i++) {
+			String[] fields = readToken(i);
+			List<String> partOfSpeech = fields.length > 1
+					? Arrays.asList(fields).subList(1, fields.length)
+					: Collections.<String> emptyList();
+			globalIds[i] = vocabulary.intern(fields[0], partOfSpeech).getId();
+		}
+		return globalIds;
+	}
+}
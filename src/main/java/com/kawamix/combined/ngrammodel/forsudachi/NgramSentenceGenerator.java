@@ -9,92 +9,146 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
 
+import com.kawamix.combined.metrics.Counter;
+import com.kawamix.combined.metrics.MetricsRegistry;
+import com.kawamix.combined.metrics.Timer;
 import com.kawamix.sudachi.SudachiTokenizer;
 import com.kawamix.word2vec.Word2VecModel;
-import com.worksap.nlp.sudachi.Morpheme;
 
 /*
  * !! for Sudachi !!
  */
 public class NgramSentenceGenerator {
 	/**
-	 * Ngram言語モデル
+	 * Ngram言語モデル (特徴言語モデルは読み込み専用として全リクエストで共有する)
 	 */
-	private NgramLanguageModel generalLanguageModel;
-	private NgramLanguageModel featuredLanguageModel;
+	private final NgramModel featuredLanguageModel;
 
 	/**
 	 * Tokenizer (Sudachi)
 	 */
-	private SudachiTokenizer tokenizer;
+	private final SudachiTokenizer tokenizer;
 
 	/**
 	 * Word2VecModel
 	 */
-	private Word2VecModel word2VecModel;
+	private final Word2VecModel word2VecModel;
 
 	/**
-	 * N-gramのN (デフォルトは2)
+	 * 前計算済みの単語類似度表 (なければnull)
 	 */
-	private int n = 2;
+	private final WordSimilarityTable similarityTable;
+
+	/**
+	 * N-gramのN
+	 */
+	private final int n;
 
 	/**
 	 * 各種閾値
 	 */
 	private final double minCosineSim = 0.4; //形態素の置換処理における単語の最低類似度
 	private final int maxSearchSudachiNodeSize = 3; //形態素の追加処理で先読みするノード数
-	private final int maxSudachiNodeSize = n + 100; // 生成時の最長ノード数
+	private final int maxSudachiNodeSize; // 生成時の最長ノード数
+
+	/**
+	 * 計測 (置換・追加・削除・汎用言語モデルからの選択 の各段階の処理時間と、採用された回数)
+	 */
+	private final Timer replaceTimer, addTimer, deleteTimer, fallbackTimer, generateTimer, beamTimer;
+	private final Counter replaceCounter, addCounter, deleteCounter, fallbackCounter, retryCounter,
+			uncharacterizedCounter, beamPrunedCounter, deadlineCounter, deadlineEmptyCounter, similarityFallbackCounter,
+			backoffCounter;
 
-	private enum FEATUREDSTATUS {
+	enum FEATUREDSTATUS {
 		REPLACE, ADD, DELETE, NONE
 	}
 
+	/**
+	 * BEAM: CHATと同じ条件で、ビームサーチで複数の候補文をまとめて生成する (generateTexts)
+	 */
 	public enum GENERATEMODE {
-		CHARACTERIZE, CHAT
+		CHARACTERIZE, CHAT, BEAM
 	}
 
-	private FEATUREDSTATUS currentStatus = FEATUREDSTATUS.NONE;
-	private GENERATEMODE currentMode = GENERATEMODE.CHAT;
-
-	public NgramSentenceGenerator() {
+	/**
+	 * ビームサーチで、特徴言語モデルを使った途中の文に加えるスコア (受理条件の平均出現回数と同じ尺度)
+	 */
+	private static final double FEATURED_BONUS = 4.0;
 
+	/**
+	 * 生成器は不変で、複数のスレッドから同時にgenerateTextを呼び出せる。
+	 * リクエストごとの状態はGenerationContextに持たせる。
+	 */
+	public NgramSentenceGenerator(int n, NgramModel featuredLanguageModel, SudachiTokenizer tokenizer,
+			Word2VecModel word2VecModel) {
+		this(n, featuredLanguageModel, tokenizer, word2VecModel, null);
 	}
 
-	public void setN(int n) {
-		this.n = n;
+	/**
+	 * @param similarityTable 置換処理で使う前計算済みの類似度表。表にない単語の組だけWord2Vecで計算する
+	 * (表の最低類似度が置換の閾値より高いと、閾値以上の組を0として扱ってしまうため受け付けない)
+	 */
+	public NgramSentenceGenerator(int n, NgramModel featuredLanguageModel, SudachiTokenizer tokenizer,
+			Word2VecModel word2VecModel, WordSimilarityTable similarityTable) {
+		this(n, featuredLanguageModel, tokenizer, word2VecModel, similarityTable, MetricsRegistry.NOOP);
 	}
 
-	public void setTokenizer(SudachiTokenizer tokenizer) {
+	/**
+	 * @param metrics 各段階の処理時間などの記録先
+	 */
+	public NgramSentenceGenerator(int n, NgramModel featuredLanguageModel, SudachiTokenizer tokenizer,
+			Word2VecModel word2VecModel, WordSimilarityTable similarityTable, MetricsRegistry metrics) {
+		if (similarityTable != null && similarityTable.getMinSimilarity() > minCosineSim)
+			throw new IllegalArgumentException("similarity table cutoff " + similarityTable.getMinSimilarity()
+					+ " is above the replacement threshold " + minCosineSim);
+		this.n = n;
+		this.featuredLanguageModel = featuredLanguageModel;
 		this.tokenizer = tokenizer;
-	}
-
-	public void setWord2VecModel(Word2VecModel word2VecModel) {
 		this.word2VecModel = word2VecModel;
+		this.similarityTable = similarityTable;
+		this.maxSudachiNodeSize = n + 100;
+		this.replaceTimer = metrics.timer("generate.stage.replace");
+		this.addTimer = metrics.timer("generate.stage.add");
+		this.deleteTimer = metrics.timer("generate.stage.delete");
+		this.fallbackTimer = metrics.timer("generate.stage.fallback");
+		this.generateTimer = metrics.timer("generate.text");
+		this.replaceCounter = metrics.counter("generate.won.replace");
+		this.addCounter = metrics.counter("generate.won.add");
+		this.deleteCounter = metrics.counter("generate.won.delete");
+		this.fallbackCounter = metrics.counter("generate.won.fallback");
+		this.retryCounter = metrics.counter("generate.retry");
+		this.uncharacterizedCounter = metrics.counter("generate.uncharacterized");
+		this.beamTimer = metrics.timer("generate.beam");
+		this.beamPrunedCounter = metrics.counter("generate.beam.pruned");
+		this.deadlineCounter = metrics.counter("generate.deadline");
+		this.deadlineEmptyCounter = metrics.counter("generate.deadline.empty");
+		this.similarityFallbackCounter = metrics.counter("generate.similarity.fallback");
+		this.backoffCounter = metrics.counter("generate.backoff");
 	}
 
-	public NgramLanguageModel buildGeneralModel(String path) {
-		return buildModel(generalLanguageModel, path);
-	}
-
-	public void setMode(GENERATEMODE mode) {
-		this.currentMode = mode;
+	public NgramModel getFeaturedLanguageModel() {
+		return this.featuredLanguageModel;
 	}
 
 	/**
-	 * This method is deprecated, so please use setFeaturedModel().
-	 * @param path
+	 * 形態素の追加処理で使う特徴言語モデルの索引を、別スレッドで作っておく (モデルの読み込み・追加の後に呼ぶ)
 	 */
-	public NgramLanguageModel buildFeturedModel(String path) {
-		return buildModel(featuredLanguageModel, path);
+	public void prepareFeaturedIndex() {
+		this.featuredLanguageModel.prepareReachabilityIndex(maxSearchSudachiNodeSize);
 	}
 
-	private NgramLanguageModel buildModel(NgramLanguageModel languageModel, String path) {
-		languageModel = new NgramLanguageModel(n);
+	/**
+	 * ファイルまたはディレクトリから言語モデルを作る
+	 */
+	public NgramLanguageModel buildModel(String path) {
+		NgramLanguageModel languageModel = new NgramLanguageModel(n);
 		if (this.tokenizer != null) {
 			languageModel.setTokenizer(tokenizer);
 		}
@@ -111,32 +165,34 @@ public class NgramSentenceGenerator {
 		return languageModel;
 	}
 
-	private List<Entry<SudachiNodeKey, List<SudachiNode>>> getHeadList(NgramLanguageModel languageModel, int min) {
-		List<Entry<SudachiNodeKey, List<SudachiNode>>> allHeadList = languageModel.findHead();
-		List<Entry<SudachiNodeKey, List<SudachiNode>>> selected = new ArrayList<>();
-		allHeadList.stream().filter(e -> e.getValue().size() > min).forEach(selected::add);
-		Collections.sort(selected, new Comparator<Entry<SudachiNodeKey, List<SudachiNode>>>() {
-			@Override
-			public int compare(Entry<SudachiNodeKey, List<SudachiNode>> o1,
-					Entry<SudachiNodeKey, List<SudachiNode>> o2) {
-				return ((Integer) o2.getValue().size()).compareTo(o1.getValue().size());
-			}
-		});
-		return selected;
+	public String generateText(NgramLanguageModel generalLanguageModel, GENERATEMODE mode) {
+		return generateText(new GenerationContext(generalLanguageModel, mode));
 	}
 
-	public String generateText() {
-		return generateText(true);
+	/**
+	 * @return 生成した文。contextの期限までに1文も完成しなければnull
+	 */
+	public String generateText(GenerationContext context) {
+		long start = generateTimer.start();
+		String text = generateText(context, true);
+		generateTimer.stop(start);
+		return text;
 	}
 
-	public String generateText(boolean characterized) {
-		List<SudachiNode> nodeList = null;
+	private String generateText(GenerationContext context, boolean characterized) {
+		// 受理されなかった文のうち最もよいもの (期限切れや試行回数を使い切った場合に返す)
+		List<SudachiNode> bestNodeList = null;
+		boolean bestUsedFeaturedModel = false;
+		double bestScore = 0.0;
 		for (int i = 0; i < 10; i++) {
+			if (i > 0)
+				retryCounter.increment();
 			SudachiNode nextSudachiNode = null;
-			nodeList = new ArrayList<>();
+			List<SudachiNode> nodeList = new ArrayList<>();
+			context.clearVisited();
 			boolean usedFeaturedModel = !characterized;
 			while (true) {
-				if (!usedFeaturedModel && currentStatus != FEATUREDSTATUS.NONE)
+				if (!usedFeaturedModel && context.status != FEATUREDSTATUS.NONE)
 					usedFeaturedModel = true;
 				if (nodeList.size() > maxSudachiNodeSize)
 					break;
@@ -146,39 +202,252 @@ public class NgramSentenceGenerator {
 					nodeList = null;
 					break;
 				}
-				//											System.out.println("nextSudachiNode:" + nextSudachiNode);
-				nextSudachiNode = generateNextSudachiNode(nextSudachiNode, nodeList, nextSudachiNode == null);
+				// 文末に達した文は期限を過ぎていても使う
+				if (context.checkDeadline()) {
+					nodeList = null;
+					break;
+				}
+				nextSudachiNode = generateNextSudachiNode(context, nextSudachiNode, nodeList,
+						nextSudachiNode == null);
 			}
-			if (nodeList == null)
-				continue;
-			int totalScore = 0;
-			for (SudachiNode node : nodeList) {
-				totalScore += node.getFreq();
+			if (nodeList != null) {
+				int totalScore = 0;
+				for (SudachiNode node : nodeList) {
+					totalScore += node.getFreq();
+				}
+				double score = (double) totalScore / (double) nodeList.size();
+				if (usedFeaturedModel && score > 4.0)
+					return mergeSudachiNodeList(nodeList);
+				if (bestNodeList == null || (usedFeaturedModel && !bestUsedFeaturedModel)
+						|| (usedFeaturedModel == bestUsedFeaturedModel && score > bestScore)) {
+					bestNodeList = nodeList;
+					bestUsedFeaturedModel = usedFeaturedModel;
+					bestScore = score;
+				}
 			}
-			if (usedFeaturedModel && ((double) totalScore / (double) nodeList.size()) > 4.0)
+			if (context.isDeadlineExceeded()) {
+				deadlineCounter.increment();
+				if (bestNodeList == null) {
+					deadlineEmptyCounter.increment();
+					return null;
+				}
+				return mergeSudachiNodeList(bestNodeList);
+			}
+		}
+		if (bestNodeList == null && characterized) {
+			uncharacterizedCounter.increment();
+			return generateText(context, false);
+		}
+		return mergeSudachiNodeList(bestNodeList);
+	}
+
+	/**
+	 * 候補文をnum個生成する
+	 * BEAMモードでは1回のビームサーチで、重複しない最大num個の文をスコアの高い順に返す。
+	 * それ以外のモードではgenerateTextをnum回呼ぶ。
+	 * contextの期限を過ぎた場合は、それまでに完成した文だけを返す (空のこともある)。
+	 */
+	public List<String> generateTexts(GenerationContext context, int num) {
+		List<String> texts = new ArrayList<>(num);
+		if (context.getMode() != GENERATEMODE.BEAM) {
+			for (int i = 0; i < num && !context.isDeadlineExceeded(); i++) {
+				String text = generateText(context);
+				if (text != null)
+					texts.add(text);
+			}
+			return texts;
+		}
+		long start = beamTimer.start();
+		for (Hypothesis hypothesis : beamSearch(context, num)) {
+			texts.add(hypothesis.text);
+		}
+		beamTimer.stop(start);
+		if (texts.isEmpty() && !context.isDeadlineExceeded()) {
+			// 文末まで届かなかった場合はランダムウォークで1文作る
+			String text = generateText(context);
+			if (text != null)
+				texts.add(text);
+		}
+		return texts;
+	}
+
+	/**
+	 * 途中の文ごとに、置換・追加・削除・汎用言語モデルの出現回数上位TOP_K個 をすべて展開し、
+	 * スコアの高い順にビーム幅だけ残す。スコアはノードの出現回数の平均 (特徴言語モデルを使っていれば加点)。
+	 * 文末に達した文は、ランダムウォークの受理条件 (特徴言語モデルを使い、平均が4.0より大きい) を満たすものを先に並べる。
+	 */
+	private List<Hypothesis> beamSearch(GenerationContext context, int num) {
+		int beamWidth = Math.max(context.getBeamWidth(), num);
+		List<Hypothesis> beam = Collections.singletonList(new Hypothesis(null, FEATUREDSTATUS.NONE, null, null));
+		Map<String, Hypothesis> finished = new HashMap<>();
+		for (int step = 0; !beam.isEmpty() && step <= maxSudachiNodeSize; step++) {
+			List<Hypothesis> children = new ArrayList<>();
+			for (Hypothesis hypothesis : beam) {
+				if (context.checkDeadline())
+					break;
+				expand(context, hypothesis, children);
+			}
+			if (context.isDeadlineExceeded()) { // 期限までに文末に達した文だけを使う (このステップで達した文も含む)
+				for (Hypothesis child : children) {
+					if (child.length <= maxSudachiNodeSize && child.next.isEOS())
+						addFinished(finished, child);
+				}
+				deadlineCounter.increment();
+				if (finished.isEmpty())
+					deadlineEmptyCounter.increment();
 				break;
+			}
+			children.sort((o1, o2) -> Double.compare(o2.score, o1.score));
+			List<Hypothesis> next = new ArrayList<>(beamWidth);
+			Set<Entry<String, SudachiNode>> seen = new HashSet<>();
+			for (Hypothesis child : children) {
+				if (child.length > maxSudachiNodeSize) {
+					beamPrunedCounter.increment();
+					continue;
+				}
+				if (child.next.isEOS()) {
+					addFinished(finished, child);
+					continue;
+				}
+				// 同じ文で同じキーに続く途中の文は1つにまとめる
+				if (next.size() >= beamWidth || !seen.add(new SimpleEntry<>(child.text, child.next))) {
+					beamPrunedCounter.increment();
+					continue;
+				}
+				next.add(child);
+			}
+			beam = next;
 		}
-		if (nodeList == null && characterized)
-			return generateText(false);
+		List<Hypothesis> results = new ArrayList<>(finished.values());
+		results.sort((o1, o2) -> {
+			if (o1.isAccepted() != o2.isAccepted())
+				return o1.isAccepted() ? -1 : 1;
+			int cmp = Double.compare(o2.score, o1.score);
+			return cmp != 0 ? cmp : o1.text.compareTo(o2.text);
+		});
+		if (!results.isEmpty() && !results.get(0).isAccepted())
+			uncharacterizedCounter.increment();
+		return results.subList(0, Math.min(num, results.size()));
+	}
 
-		return mergeSudachiNodeList(nodeList);
+	/**
+	 * 文末に達した文を加える (同じ文はスコアの高い方を残す)
+	 */
+	private static void addFinished(Map<String, Hypothesis> finished, Hypothesis hypothesis) {
+		Hypothesis current = finished.get(hypothesis.text);
+		if (current == null || current.score < hypothesis.score)
+			finished.put(hypothesis.text, hypothesis);
 	}
 
-	public String generateText(NgramLanguageModel featuredLanguageModel) {
-		this.featuredLanguageModel = featuredLanguageModel;
-		String text = generateText();
-		return text;
+	/**
+	 * 途中の文に1ステップ分の展開を加える
+	 */
+	private void expand(GenerationContext context, Hypothesis hypothesis, List<Hypothesis> children) {
+		List<SudachiNode> nodeList = hypothesis.toNodeList();
+		context.clearVisited();
+		context.visitAll(nodeList);
+		SudachiNode node = hypothesis.next;
+		List<SudachiNode> candidates = findGeneralCandidates(context, node);
+		if (candidates == null || candidates.isEmpty())
+			return;
+		if (hypothesis.status != FEATUREDSTATUS.REPLACE) {
+			Entry<SudachiNode, SudachiNode> replaced = getReplacedSudachiNode(context, candidates, node);
+			if (replaced != null)
+				children.add(new Hypothesis(hypothesis, FEATUREDSTATUS.REPLACE, replaced.getKey(),
+						Collections.singletonList(replaced.getValue())));
+		}
+		if (node != null) {
+			Entry<SudachiNode, List<SudachiNode>> added = getAddedSudachiNode(candidates, node);
+			if (added != null)
+				children.add(new Hypothesis(hypothesis, FEATUREDSTATUS.ADD, added.getKey(), added.getValue()));
+		}
+		Entry<SudachiNode, SudachiNode> deleted = getDeletedSudachiNode(context, candidates, node);
+		if (deleted != null)
+			children.add(new Hypothesis(hypothesis, FEATUREDSTATUS.DELETE, deleted.getKey(),
+					Collections.singletonList(deleted.getValue())));
+		for (SudachiNode candidate : selectTop(candidates, NgramLanguageModel.TOP_K)) {
+			children.add(new Hypothesis(hypothesis, FEATUREDSTATUS.NONE, candidate,
+					Collections.singletonList(candidate)));
+		}
 	}
 
-	public String generateText(NgramLanguageModel featuredLanguageModel, NgramLanguageModel generalLanguageModel) {
-		this.featuredLanguageModel = featuredLanguageModel;
-		this.generalLanguageModel = generalLanguageModel;
-		String text = generateText();
-		return text;
+	/**
+	 * ビームサーチの途中の文 (前のステップの文に、このステップで加えたノードをつないだもの)
+	 */
+	private final class Hypothesis {
+		private final Hypothesis parent;
+		private final FEATUREDSTATUS status;
+		private final SudachiNode next; // 次のステップのキーになるノード
+		private final List<SudachiNode> added;
+		private final int length;
+		private final long freqSum;
+		private final boolean featured;
+		private final double score;
+		private final SudachiNode last; // 文の最後のノード
+		private final String text; // mergeSudachiNodeListと同じ (最後のノードは含まない)
+
+		Hypothesis(Hypothesis parent, FEATUREDSTATUS status, SudachiNode next, List<SudachiNode> added) {
+			this.parent = parent;
+			this.status = status;
+			this.next = next;
+			this.added = added;
+			if (parent == null) { // 生成前
+				this.length = 0;
+				this.freqSum = 0;
+				this.featured = false;
+				this.score = 0.0;
+				this.last = null;
+				this.text = "";
+				return;
+			}
+			long sum = parent.freqSum;
+			for (SudachiNode node : added) {
+				sum += node.getFreq();
+			}
+			this.length = parent.length + added.size();
+			this.freqSum = sum;
+			this.featured = parent.featured || status != FEATUREDSTATUS.NONE;
+			this.score = (double) sum / this.length + (this.featured ? FEATURED_BONUS : 0.0);
+			// 親の文に、親の最後のノードと追加したノード (新しい最後のノードを除く) の分だけ足す
+			StringBuilder sb = new StringBuilder(parent.text);
+			SudachiNode last = parent.last;
+			int position = parent.length;
+			for (SudachiNode node : added) {
+				if (position == 0) { // 文頭のノードはキーの分も含める
+					String[] strings = node.getString();
+					for (int i = 1; i < strings.length; i++) {
+						if (strings[i] != null)
+							sb.append(strings[i]);
+					}
+				} else if (position > 1 && last.getLastToken() != null) {
+					sb.append(last.getLastToken().surface());
+				}
+				last = node;
+				position++;
+			}
+			this.last = last;
+			this.text = sb.toString();
+		}
+
+		boolean isAccepted() {
+			return this.featured && (double) this.freqSum / this.length > 4.0;
+		}
+
+		List<SudachiNode> toNodeList() {
+			List<SudachiNode> nodeList = new ArrayList<>(this.length);
+			collect(nodeList);
+			return nodeList;
+		}
+
+		private void collect(List<SudachiNode> nodeList) {
+			if (this.parent == null)
+				return;
+			this.parent.collect(nodeList);
+			nodeList.addAll(this.added);
+		}
 	}
 
 	private String mergeSudachiNodeList(List<SudachiNode> nodeList) {
-		System.out.println(nodeList);
 		if (nodeList == null)
 			return null;
 		StringBuilder sb = new StringBuilder();
@@ -199,55 +468,74 @@ public class NgramSentenceGenerator {
 		return sb.toString();
 	}
 
-	private SudachiNode generateNextSudachiNode(SudachiNode node, List<SudachiNode> nodeList, boolean isFirst) {
-		if (!isFirst) { // 先頭のノードを探索する段階
+	private SudachiNode generateNextSudachiNode(GenerationContext context, SudachiNode node,
+			List<SudachiNode> nodeList, boolean isFirst) {
+		List<SudachiNode> candidates = findGeneralCandidates(context, isFirst ? null : node);
+		if (candidates == null) {
+			nodeList.add(null);
+			return null;
+		}
+		return generateNextSudachiNode(context, node, nodeList, candidates);
+	}
+
+	/**
+	 * 汎用言語モデルから次のノードの候補を取得する
+	 * @param node 直前のノード。nullなら文頭の候補
+	 * 後続ノードがすべて生成中の文で使用済みなどで候補が残らなければ、短い文脈の後続ノードを候補にする。
+	 * @return 文頭キーがなければnull
+	 */
+	private List<SudachiNode> findGeneralCandidates(GenerationContext context, SudachiNode node) {
+		NgramLanguageModel generalLanguageModel = context.getGeneralLanguageModel();
+		if (node != null) { // 先頭のノードを探索する段階
 			// 汎用言語モデルよりSudachiNodeの候補を取得
+			// (汎用言語モデルのノードなら文末でなければ後ろN-1個のキーがある。バックオフで作ったノードにはないこともある)
 			List<SudachiNode> candidates = new ArrayList<>();
-			generalLanguageModel.findNextCandidates(node).stream().forEach(n -> {
-
-				Morpheme morpheme = n.getLastToken();
-				if (!nodeList.contains(n) && (morpheme == null || (this.currentMode != GENERATEMODE.CHAT
-						|| generalLanguageModel.getFreq(morpheme.surface()) > 1)))
-					candidates.add(n);
-			});
-			return generateNextSudachiNode(node, nodeList, candidates);
+			List<SudachiNode> nextCandidates = generalLanguageModel.findNextCandidates(node);
+			if (nextCandidates != null) {
+				for (SudachiNode n : nextCandidates) {
+					if (isSelectable(context, n))
+						candidates.add(n);
+				}
+			}
+			if (candidates.isEmpty()) {
+				candidates = generalLanguageModel.findBackoffCandidates(node, n -> isSelectable(context, n));
+				if (!candidates.isEmpty())
+					backoffCounter.increment();
+			}
+			return candidates;
 		}
-		List<Entry<SudachiNodeKey, List<SudachiNode>>> allHeadList = getHeadList(generalLanguageModel,
-				this.currentMode == GENERATEMODE.CHAT ? 1 : 0);
-		if (allHeadList.size() < 1) {
-			nodeList.add(null);
+		List<Entry<SudachiNodeKey, List<SudachiNode>>> allHeadList = generalLanguageModel
+				.findHead(context.getMode() == GENERATEMODE.CHARACTERIZE ? 0 : 1);
+		if (allHeadList.size() < 1)
 			return null;
-		}
 		List<SudachiNode> candidates = new ArrayList<>();
 		for (int i = 0; i < 10 && i < allHeadList.size(); i++) {
 			candidates.addAll(allHeadList.get(i).getValue());
 		}
-		return generateNextSudachiNode(node, nodeList, candidates);
+		return candidates;
 	}
 
-	private SudachiNode generateNextSudachiNode(SudachiNode node, List<SudachiNode> nodeList,
-			List<SudachiNode> candidates) {
-		System.out.println("node:" + node + ", nodeList:" + nodeList);
-
+	private SudachiNode generateNextSudachiNode(GenerationContext context, SudachiNode node,
+			List<SudachiNode> nodeList, List<SudachiNode> candidates) {
 		// 特徴言語モデルより置換・追加・削除用の候補を取得
 		/**
 		 * 置換・追加・削除の優先順位
 		 */
 		boolean featured = true;
 		if (featured) {
-			Random rnd = new Random();
+			SplittableRandom rnd = context.getRandom();
 			// 形態素の置換処理
 			// 同じN-1個の形態素をキーとするノードを取得
-			long start = System.currentTimeMillis();
-			if (currentStatus != FEATUREDSTATUS.REPLACE && rnd.nextInt(20) != 0) {
-				Entry<SudachiNode, SudachiNode> replaced = getReplacedSudachiNode(candidates, node);
-				System.out.println("\treplace node:" + (System.currentTimeMillis() - start) + "ms");
+			if (context.status != FEATUREDSTATUS.REPLACE && rnd.nextInt(20) != 0) {
+				long start = replaceTimer.start();
+				Entry<SudachiNode, SudachiNode> replaced = getReplacedSudachiNode(context, candidates, node);
+				replaceTimer.stop(start);
 				if (replaced != null) {
 					//置換
-					System.out.println("rep token:" + replaced.getKey().getLastToken().partOfSpeech() + "\t"
-							+ replaced.getValue().getLastToken().partOfSpeech());
+					replaceCounter.increment();
 					nodeList.add(replaced.getValue());
-					currentStatus = FEATUREDSTATUS.REPLACE;
+					context.visit(replaced.getValue());
+					context.status = FEATUREDSTATUS.REPLACE;
 					return replaced.getKey();
 				}
 
@@ -255,77 +543,138 @@ public class NgramSentenceGenerator {
 
 			// 形態素の追加処理
 			// 限界探索数先まで特徴言語モデルのほうのノードを探索
-			start = System.currentTimeMillis();
 			if (node != null && rnd.nextInt(5) != 0) {
+				long start = addTimer.start();
 				Entry<SudachiNode, List<SudachiNode>> added = getAddedSudachiNode(candidates, node);
-				System.out.println("\tadded node:" + (System.currentTimeMillis() - start) + "ms");
+				addTimer.stop(start);
 				if (added != null) {
 					//追加
+					addCounter.increment();
 					nodeList.addAll(added.getValue());
-					currentStatus = FEATUREDSTATUS.ADD;
+					context.visitAll(added.getValue());
+					context.status = FEATUREDSTATUS.ADD;
 					return added.getKey();
 				}
 
 			}
 			// 形態素の削除処理
-			start = System.currentTimeMillis();
 			if (rnd.nextInt(10) != 0) {
-				Entry<SudachiNode, SudachiNode> deleted = getDeletedSudachiNode(candidates, node);
-				System.out.println("\tdeleted node:" + (System.currentTimeMillis() - start) + "ms");
+				long start = deleteTimer.start();
+				Entry<SudachiNode, SudachiNode> deleted = getDeletedSudachiNode(context, candidates, node);
+				deleteTimer.stop(start);
 				if (deleted != null) {
 					// 削除
+					deleteCounter.increment();
 					nodeList.add(deleted.getValue());
-					currentStatus = FEATUREDSTATUS.DELETE;
+					context.visit(deleted.getValue());
+					context.status = FEATUREDSTATUS.DELETE;
 					return deleted.getKey();
 				}
 
 			}
 		}
 
-		Collections.sort(candidates, new Comparator<SudachiNode>() {
-			@Override
-			public int compare(SudachiNode o1, SudachiNode o2) {
-				return ((Integer) o2.getFreq()).compareTo(o1.getFreq());
-			}
-		});
-		Random rnd = new Random();
 		if (candidates.size() < 1)
 			return null;
-		int index = candidates.size() > 5 ? rnd.nextInt(5) : rnd.nextInt(candidates.size());
-		SudachiNode next = candidates.get(index);
+		long start = fallbackTimer.start();
+		SplittableRandom rnd = context.getRandom();
+		SudachiNode next = null;
+		if (node != null) {
+			// 汎用言語モデルの前計算済みの表から選ぶ
+			SuccessorSampler sampler = context.getGeneralLanguageModel().findNextSampler(node);
+			if (sampler != null)
+				next = sampler.sample(context.getSamplingPolicy(), NgramLanguageModel.TOP_K, rnd,
+						n -> isSelectable(context, n));
+		}
+		if (next == null)
+			next = selectCandidate(context.getSamplingPolicy(), candidates, rnd);
+		fallbackTimer.stop(start);
+		fallbackCounter.increment();
 		nodeList.add(next);
-		currentStatus = FEATUREDSTATUS.NONE;
+		context.visit(next);
+		context.status = FEATUREDSTATUS.NONE;
 		return next;
 	}
 
-	private Entry<SudachiNode, SudachiNode> getDeletedSudachiNode(List<SudachiNode> candidates,
-			SudachiNode keySudachiNode) {
+	/**
+	 * 生成中の文にまだ含まれず、汎用言語モデルで2回以上現れる形態素のノードか (文末は常に可)
+	 */
+	private boolean isSelectable(GenerationContext context, SudachiNode n) {
+		SudachiToken token = n.getLastToken();
+		return !context.isVisited(n) && (token == null || (context.getMode() == GENERATEMODE.CHARACTERIZE
+				|| context.getGeneralLanguageModel().getFreq(token.surface()) > 1));
+	}
+
+	/**
+	 * 候補一覧からsamplingPolicyに従って1つ選ぶ (並べ替えはしない)
+	 */
+	private SudachiNode selectCandidate(SamplingPolicy samplingPolicy, List<SudachiNode> candidates,
+			SplittableRandom rnd) {
+		switch (samplingPolicy) {
+		case FREQUENCY:
+			long total = 0;
+			for (SudachiNode candidate : candidates)
+				total += candidate.getFreq();
+			long target = (long) (rnd.nextDouble() * total);
+			for (SudachiNode candidate : candidates) {
+				target -= candidate.getFreq();
+				if (target < 0)
+					return candidate;
+			}
+			return candidates.get(candidates.size() - 1);
+		case UNIFORM:
+			return candidates.get(rnd.nextInt(candidates.size()));
+		default:
+			// 出現回数の上位K個 (同数は先に現れたもの) から選ぶ
+			SudachiNode[] top = selectTop(candidates, NgramLanguageModel.TOP_K);
+			return top[rnd.nextInt(top.length)];
+		}
+	}
+
+	/**
+	 * 出現回数の上位k個 (同数は先に現れたもの) を多い順に返す
+	 */
+	private static SudachiNode[] selectTop(List<SudachiNode> candidates, int k) {
+		SudachiNode[] top = new SudachiNode[Math.min(k, candidates.size())];
+		int filled = 0;
+		for (SudachiNode candidate : candidates) {
+			int position = filled;
+			while (position > 0 && top[position - 1].getFreq() < candidate.getFreq())
+				position--;
+			if (position >= top.length)
+				continue;
+			for (int i = Math.min(filled, top.length - 1); i > position; i--)
+				top[i] = top[i - 1];
+			top[position] = candidate;
+			if (filled < top.length)
+				filled++;
+		}
+		return top;
+	}
+
+	private Entry<SudachiNode, SudachiNode> getDeletedSudachiNode(GenerationContext context,
+			List<SudachiNode> candidates, SudachiNode keySudachiNode) {
 		SudachiNode selected = null, original = null;
 		double highScore = 0.0d;
 
 		for (SudachiNode candidate : candidates) {
 			List<SudachiNode> featuredSudachiNodeCandidates = null;
 			if (keySudachiNode == null) {
-				List<Entry<SudachiNodeKey, List<SudachiNode>>> allHeadList = getHeadList(featuredLanguageModel, 0);
-				for (Entry<SudachiNodeKey, List<SudachiNode>> entry : allHeadList) {
-					if (entry.getKey().equals(getSudachiNodeKey(candidate))) {
-						candidates = entry.getValue();
-						break;
-					}
-				}
+				featuredSudachiNodeCandidates = featuredLanguageModel.findSiblingCandidates(candidate);
 			} else {
 				featuredSudachiNodeCandidates = featuredLanguageModel.findNextCandidates(keySudachiNode);
 			}
 			if (featuredSudachiNodeCandidates == null || candidate.isEOS())
 				continue;
-			List<Entry<SudachiNode, SudachiNode>> entries = deleteFeaturedSudachiNode(candidate,
+			List<Entry<SudachiNode, SudachiNode>> entries = deleteFeaturedSudachiNode(
+					context.getGeneralLanguageModel(), candidate,
 					featuredSudachiNodeCandidates);
 			for (int i = 0; i < 10 && i < entries.size(); i++) {
 				Entry<SudachiNode, SudachiNode> entry = entries.get(i);
 				SudachiNode featuredSudachiNode = entry.getKey();
 				SudachiNode generalSudachiNode = entry.getValue();
 				double score = (featuredSudachiNode.getFreq() * 0.6 + generalSudachiNode.getFreq() * 0.4)
-						* (1 + new Random().nextDouble());
+						* (1 + context.getRandom().nextDouble());
 				if (highScore < score) {
 					original = generalSudachiNode;
 					selected = featuredSudachiNode;
@@ -337,16 +686,16 @@ public class NgramSentenceGenerator {
 		return new SimpleEntry<>(original, selected);
 	}
 
-	private List<Entry<SudachiNode, SudachiNode>> deleteFeaturedSudachiNode(SudachiNode node,
+	private List<Entry<SudachiNode, SudachiNode>> deleteFeaturedSudachiNode(
+			NgramLanguageModel generalLanguageModel, SudachiNode node,
 			List<SudachiNode> featuredSudachiNodeCandidates) {
 		List<SudachiNode> candidates = generalLanguageModel.findNextCandidates(node);
 		List<Entry<SudachiNode, SudachiNode>> outputSudachiNodePairList = new ArrayList<>();
 
 		for (SudachiNode candidate : candidates) {
-			Morpheme generalLastToken = candidate.getLastToken();
+			int generalLastId = candidate.getLastId();
 			for (SudachiNode featuredSudachiNodeCandidate : featuredSudachiNodeCandidates) {
-				Morpheme featuredLastToken = featuredSudachiNodeCandidate.getLastToken();
-				if (!equalsMorpheme(generalLastToken, featuredLastToken))
+				if (featuredSudachiNodeCandidate.getLastId() != generalLastId)
 					continue;
 				// matches!
 				outputSudachiNodePairList.add(new SimpleEntry<>(featuredSudachiNodeCandidate, candidate));
@@ -363,97 +712,45 @@ public class NgramSentenceGenerator {
 
 	private Entry<SudachiNode, List<SudachiNode>> getAddedSudachiNode(List<SudachiNode> candidates,
 			SudachiNode keySudachiNode) {
+		// 特徴言語モデルで、keyの後ろから候補の形態素まで2個以上のノードを挟んでつながる経路を探す
+		ReachabilityIndex index = featuredLanguageModel.getReachabilityIndex(maxSearchSudachiNodeSize);
+		if (index == null) // 起動直後で索引をまだ作っている
+			return null;
 		double highScore = 0.0d;
-		List<SudachiNode> selected = null;
+		int selected = -1;
 		SudachiNode original = null;
 		for (SudachiNode candidate : candidates) {
-			Entry<List<SudachiNode>, Double> entry = addFeaturedSudachiNodeList(candidate, keySudachiNode);
-			double score = entry.getValue();
+			// 候補のID列は keyの後ろN-1個 + 候補の形態素 なので、そのまま索引を引ける
+			int connection = index.find(candidate.getIds());
+			if (connection < 0)
+				continue;
+			double score = index.getScore(connection);
 			if (highScore < score) {
+				highScore = score;
 				original = candidate;
-				selected = entry.getKey();
+				selected = connection;
 			}
 		}
 		if (original == null)
 			return null;
-		return new SimpleEntry<>(original, selected);
+		// 経路のノードは採用した1つだけ作る
+		return new SimpleEntry<>(original, index.getPath(selected));
 	}
 
-	private Entry<List<SudachiNode>, Double> addFeaturedSudachiNodeList(SudachiNode node, SudachiNode keySudachiNode) {
-		Morpheme generalLastToken = node.getLastToken();
-
-		//指定した値まで最大探索
-		List<List<SudachiNode>> connectableSudachiNodeList = getConnectableFeaturedSudachiNodeList(keySudachiNode,
-				generalLastToken,
-				new ArrayList<>(), new ArrayList<>());
-		double highScore = 0.0d;
-		List<SudachiNode> selected = null;
-		for (List<SudachiNode> nodeList : connectableSudachiNodeList) {
-			double score = 0.0d;
-			int nodeSize = nodeList.size();
-			for (SudachiNode n : nodeList) {
-				score += nodeSize * 0.5 + n.getFreq();
-			}
-			score = score / (nodeList.size());
-			if (highScore < score) {
-				highScore = score;
-				selected = nodeList;
-			}
-		}
-		return new SimpleEntry<>(selected, highScore);
-	}
-
-	private List<List<SudachiNode>> getConnectableFeaturedSudachiNodeList(SudachiNode nextSudachiNode,
-			Morpheme lastMorpheme,
-			List<SudachiNode> currentSudachiNodeList,
-			List<List<SudachiNode>> connectedSudachiNodeList) {
-
-		List<SudachiNode> candidates = featuredLanguageModel.findNextCandidates(nextSudachiNode);
-
-		if (candidates == null) {
-			return connectedSudachiNodeList;
-		}
-		for (SudachiNode candidate : candidates) {
-			Morpheme featuredLastToken = candidate.getLastToken();
-			List<SudachiNode> nodeList = new ArrayList<>(currentSudachiNodeList);
-			nodeList.add(candidate);
-			if (nodeList.size() > 1 && equalsMorpheme(lastMorpheme, featuredLastToken)) {
-				connectedSudachiNodeList.add(nodeList);
-				return connectedSudachiNodeList;
-			} else {
-				if (nodeList.size() > maxSearchSudachiNodeSize)
-					return connectedSudachiNodeList;
-				getConnectableFeaturedSudachiNodeList(candidate, lastMorpheme, nodeList,
-						connectedSudachiNodeList);
-			}
-		}
-		return connectedSudachiNodeList;
-	}
-
-	private boolean equalsMorpheme(Morpheme token1, Morpheme token2) {
-		if (token1 == null || token2 == null)
-			return token1 == null && token2 == null;
-		if (!token1.surface().equals(token2.surface()))
-			return false;
-		if (!token1.partOfSpeech().equals(token2.partOfSpeech()))
-			return false;
-		return true;
-	}
-
-	private Entry<SudachiNode, SudachiNode> getReplacedSudachiNode(List<SudachiNode> candidates,
-			SudachiNode keySudachiNode) {
-		if (word2VecModel == null)
+	private Entry<SudachiNode, SudachiNode> getReplacedSudachiNode(GenerationContext context,
+			List<SudachiNode> candidates, SudachiNode keySudachiNode) {
+		if (word2VecModel == null && similarityTable == null)
 			return null;
 		SudachiNode replaced = null, original = null;
 		double highScore = 0.0d;
 		for (SudachiNode candidate : candidates) {
 			if (candidate.isEOS())
 				continue;
-			SudachiNode replacedCandidate = replaceFeaturedSudachiNode(candidate, keySudachiNode);
+			SudachiNode replacedCandidate = replaceFeaturedSudachiNode(context, candidate, keySudachiNode);
 			if (replacedCandidate == null)
 				continue;
 			double score = (candidate.getFreq() * 0.4 + replacedCandidate.getFreq() * 0.6)
-					* (1 + new Random().nextDouble());
+					* (1 + context.getRandom().nextDouble());
 			if (highScore < score) {
 				replaced = replacedCandidate;
 				original = candidate;
@@ -466,53 +763,39 @@ public class NgramSentenceGenerator {
 		return new SimpleEntry<>(original, replaced);
 	}
 
-	private SudachiNodeKey getSudachiNodeKey(SudachiNode node) {
-		Morpheme[] nodeMorphemes = node.getValue();
-		Morpheme[] nodeKeyMorphemes = new Morpheme[nodeMorphemes.length - 1];
-		for (int i = 0; i < nodeKeyMorphemes.length; i++) {
-			nodeKeyMorphemes[i] = nodeMorphemes[i];
+	private double similarity(String generalSurface, String featuredSurface) {
+		if (similarityTable != null) {
+			double similarity = similarityTable.similarity(generalSurface, featuredSurface);
+			if (!Double.isNaN(similarity) || word2VecModel == null)
+				return similarity;
+			similarityFallbackCounter.increment(); // 表の語彙にない単語
 		}
-		return new SudachiNodeKey(nodeKeyMorphemes);
+		return word2VecModel.similarity(generalSurface, featuredSurface);
 	}
 
-	private SudachiNode replaceFeaturedSudachiNode(SudachiNode node, SudachiNode keySudachiNode) {
-		List<SudachiNode> candidates = null;
+	private SudachiNode replaceFeaturedSudachiNode(GenerationContext context, SudachiNode node,
+			SudachiNode keySudachiNode) {
+		SudachiToken generalSudachiNode = node.getLastToken();
+		if (generalSudachiNode == null || generalSudachiNode.isParticle())
+			return null;
+		// 品詞(大分類と活用形)が同一かつ自立語の形態素に限定
+		int posClass = generalSudachiNode.getPosClass();
+		SudachiNode[] candidates = null;
 		if (keySudachiNode == null) {
-			List<Entry<SudachiNodeKey, List<SudachiNode>>> allHeadList = getHeadList(featuredLanguageModel, 0);
-			for (Entry<SudachiNodeKey, List<SudachiNode>> entry : allHeadList) {
-				if (entry.getKey().equals(getSudachiNodeKey(node))) {
-					candidates = entry.getValue();
-					break;
-				}
-			}
+			candidates = featuredLanguageModel.findSiblingReplacements(node, posClass);
 		} else {
-			candidates = featuredLanguageModel.findNextCandidates(keySudachiNode);
+			candidates = featuredLanguageModel.findNextReplacements(keySudachiNode, posClass);
 		}
 		if (candidates == null)
 			return null;
 
-		Morpheme generalSudachiNode = node.getLastToken();
-		List<String> generalSudachiNodeDetailPos = generalSudachiNode.partOfSpeech();
-		String generalSudachiNodePos = generalSudachiNodeDetailPos.get(0);
 		String generalSurface = generalSudachiNode.surface();
 
 		Map<SudachiNode, Double> similarityMap = new HashMap<>(); //単語の類似度Map、candidate, value
 		for (SudachiNode candidate : candidates) {
-			if (candidate.isEOS())
-				continue;
-			Morpheme featuredSudachiNode = candidate.getLastToken();
-			// 品詞が同一かつ自立語の形態素に限定
-			List<String> featuredSudachiNodeDetailPos = featuredSudachiNode.partOfSpeech();
-			String featuredSudachiNodePos = featuredSudachiNodeDetailPos.get(0);
-
-			if (!featuredSudachiNodePos.equals(generalSudachiNodePos)
-					|| featuredSudachiNodePos.contains("助詞")
-					|| !featuredSudachiNodeDetailPos.get(5).equals(generalSudachiNodeDetailPos.get(5)))
-				continue;
-
-			String featuredSurface = featuredSudachiNode.surface();
+			String featuredSurface = candidate.getLastToken().surface();
 			//Word2Vecで類似度を判定
-			double cosineSimilarity = word2VecModel.similarity(generalSurface, featuredSurface);
+			double cosineSimilarity = similarity(generalSurface, featuredSurface);
 			if (cosineSimilarity >= minCosineSim)
 				similarityMap.put(candidate, cosineSimilarity);
 		}
@@ -531,7 +814,7 @@ public class NgramSentenceGenerator {
 		// 閾値以上のものからランダムに選択? or
 		// 閾値以上のものからM個選択し、その中からランダムに選択? or <- とりあえずこれ(M=10)
 		// 全体のNgram言語モデルに存在する形態素か判定?
-		Random rnd = new Random();
+		SplittableRandom rnd = context.getRandom();
 		int index = entries.size() < 10 ? rnd.nextInt(entries.size()) : rnd.nextInt(10);
 		SudachiNode selected = entries.get(index).getKey();
 		return selected;
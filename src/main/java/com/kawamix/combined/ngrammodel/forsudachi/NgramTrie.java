@@ -0,0 +1,255 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+
+/**
+ * N-gramのキー (N-1個のトークンID) と後続ノードを持つトライ
+ * キーのトークンを後ろから順にたどり、深さdの節点は「直前d個のトークン」の文脈を表す。
+ * 深さN-1の節点がキーの後続ノード一覧 (NgramEntry) を持ち、その下に後続ノード (SudachiNode) を置く。
+ * 後ろ側が同じ文脈は節点を共有するので、1段浅い節点から下をたどれば短い文脈の後続ノードが分かる (バックオフ)。
+ * 節点とノードは、(親の節点の番号, トークンID) をキーとする1つのオープンアドレス法の表に持つ。
+ * 読み取りはロックなしで、書き込み (構築・追記。同時に1つだけ) と同時に行ってよい。拡張後の表は作り終えてから公開する。
+ * @author kawami
+ *
+ */
+final class NgramTrie {
+	private final int n;
+	private final Context root = new Context(0, -1, 0, null);
+	private volatile Object[] table = new Object[16]; // Context または SudachiNode
+	private int size;
+	private int contextCount; // 根を除く節点の数 (節点の番号は1から)
+	private int entryCount;
+	private int nodeCount;
+
+	/**
+	 * トライの節点 (文脈)
+	 */
+	private static final class Context {
+		private final int id;
+		private final int parentId;
+		private final int label;
+		private final Context nextSibling;
+		private volatile Context firstChild;
+		private volatile NgramEntry entry; // 深さN-1の節点だけ
+
+		private Context(int id, int parentId, int label, Context nextSibling) {
+			this.id = id;
+			this.parentId = parentId;
+			this.label = label;
+			this.nextSibling = nextSibling;
+		}
+	}
+
+	NgramTrie(int n) {
+		this.n = n;
+	}
+
+	int getEntryCount() {
+		return this.entryCount;
+	}
+
+	int getNodeCount() {
+		return this.nodeCount;
+	}
+
+	/**
+	 * @return 根を除く節点の数 (キーの数 + 短い文脈の数)
+	 */
+	int getContextCount() {
+		return this.contextCount;
+	}
+
+	/**
+	 * @param ids キーを含む配列
+	 * @param offset キーの開始位置 (ids[offset]からN-1個)
+	 */
+	NgramEntry getEntry(int[] ids, int offset) {
+		Context context = findContext(this.table, ids, offset, n - 1);
+		return context == null ? null : context.entry;
+	}
+
+	/**
+	 * @param offset ノードのID列の開始位置 (ids[offset]からN個)
+	 */
+	SudachiNode getNode(int[] ids, int offset) {
+		Object[] table = this.table;
+		Context context = findContext(table, ids, offset, n - 1);
+		if (context == null)
+			return null;
+		int mask = table.length - 1;
+		for (int slot = hash(context.id, ids[offset + n - 1]) & mask;; slot = (slot + 1) & mask) {
+			Object value = table[slot];
+			if (value == null)
+				return null;
+			if (value instanceof SudachiNode && matches(((SudachiNode) value).getIds(), ids, offset))
+				return (SudachiNode) value;
+		}
+	}
+
+	/**
+	 * 同じキーの後続ノード一覧が既にあれば置き換える (文脈の節点がなければ作る)
+	 * @return 置き換えられた一覧。なければnull
+	 */
+	NgramEntry putEntry(NgramEntry entry) {
+		Context context = addContext(entry.getKeyIds());
+		NgramEntry current = context.entry;
+		context.entry = entry;
+		if (current == null)
+			this.entryCount++;
+		return current;
+	}
+
+	/**
+	 * まだないノードを加える (キーの後続ノード一覧への追加は呼び出し側で行う)
+	 */
+	void putNode(SudachiNode node) {
+		int[] ids = node.getIds();
+		Context context = addContext(ids);
+		insert(node, hash(context.id, ids[n - 1]));
+		this.nodeCount++;
+	}
+
+	/**
+	 * 全てのキーの後続ノード一覧を順に渡す (表の並び順。同じ登録順なら同じ順番になる)
+	 */
+	void forEachEntry(Consumer<? super NgramEntry> action) {
+		for (Object value : this.table) {
+			if (value instanceof Context) {
+				NgramEntry entry = ((Context) value).entry;
+				if (entry != null)
+					action.accept(entry);
+			}
+		}
+	}
+
+	/**
+	 * キーの後ろdepth個のトークンが同じ、他のキーの後続ノード一覧を順に渡す (キー自身は除く)
+	 * @param ids キーを含む配列 (ids[offset]からN-1個)
+	 * @param limit 渡す一覧の数の上限
+	 */
+	void forEachBackoffEntry(int[] ids, int offset, int depth, int limit, Consumer<? super NgramEntry> action) {
+		Context context = findContext(this.table, ids, offset, depth);
+		if (context == null)
+			return;
+		NgramEntry self = getEntry(ids, offset);
+		Deque<Context> stack = new ArrayDeque<>();
+		Deque<Integer> depths = new ArrayDeque<>();
+		stack.push(context);
+		depths.push(depth);
+		int count = 0;
+		while (!stack.isEmpty() && count < limit) {
+			Context current = stack.pop();
+			int currentDepth = depths.pop();
+			if (currentDepth == n - 1) {
+				NgramEntry entry = current.entry;
+				if (entry != null && entry != self) {
+					action.accept(entry);
+					count++;
+				}
+				continue;
+			}
+			// 兄弟は後に加えたものが先頭なので、そのまま積めば登録順に取り出せる
+			for (Context child = current.firstChild; child != null; child = child.nextSibling) {
+				stack.push(child);
+				depths.push(currentDepth + 1);
+			}
+		}
+	}
+
+	/**
+	 * キーの後ろdepth個のトークンの文脈の節点を探す
+	 */
+	private Context findContext(Object[] table, int[] ids, int offset, int depth) {
+		Context context = this.root;
+		for (int i = offset + n - 2; i > offset + n - 2 - depth; i--) {
+			context = findChild(table, context.id, ids[i]);
+			if (context == null)
+				return null;
+		}
+		return context;
+	}
+
+	private Context findChild(Object[] table, int parentId, int label) {
+		int mask = table.length - 1;
+		for (int slot = hash(parentId, label) & mask;; slot = (slot + 1) & mask) {
+			Object value = table[slot];
+			if (value == null)
+				return null;
+			if (value instanceof Context) {
+				Context context = (Context) value;
+				if (context.parentId == parentId && context.label == label)
+					return context;
+			}
+		}
+	}
+
+	/**
+	 * キー (ids[0]からN-1個) の文脈の節点を、なければ途中の節点も含めて作る
+	 */
+	private Context addContext(int[] ids) {
+		Context context = this.root;
+		for (int i = n - 2; i >= 0; i--) {
+			Context child = findChild(this.table, context.id, ids[i]);
+			if (child == null) {
+				child = new Context(++this.contextCount, context.id, ids[i], context.firstChild);
+				insert(child, hash(context.id, ids[i]));
+				context.firstChild = child;
+			}
+			context = child;
+		}
+		return context;
+	}
+
+	private void insert(Object value, int hash) {
+		if ((this.size + 1) * 4 > this.table.length * 3)
+			resize();
+		Object[] table = this.table;
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != null)
+			slot = (slot + 1) & mask;
+		table[slot] = value;
+		this.size++;
+	}
+
+	private void resize() {
+		Object[] old = this.table;
+		Object[] table = new Object[old.length * 2];
+		int mask = table.length - 1;
+		for (Object value : old) {
+			if (value == null)
+				continue;
+			int slot = hashOf(value) & mask;
+			while (table[slot] != null)
+				slot = (slot + 1) & mask;
+			table[slot] = value;
+		}
+		this.table = table;
+	}
+
+	private int hashOf(Object value) {
+		if (value instanceof Context) {
+			Context context = (Context) value;
+			return hash(context.parentId, context.label);
+		}
+		// ノードの親は、キー (先頭N-1個) の節点
+		int[] ids = ((SudachiNode) value).getIds();
+		return hash(findContext(this.table, ids, 0, n - 1).id, ids[n - 1]);
+	}
+
+	private boolean matches(int[] key, int[] ids, int offset) {
+		for (int i = 0; i < n; i++) {
+			if (key[i] != ids[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int hash(int parentId, int label) {
+		int h = 31 * (31 + parentId) + label;
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,418 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * saveで書き出したファイルをメモリマップしたまま検索する言語モデル (特徴言語モデル用)
+ * N-gramをヒープ上のオブジェクトとして持たないため、長く使うモデルでもGCの走査対象にならない。
+ * 検索結果の後続ノードはファイル上の位置を指すビューで、ノードは取り出したときに作る。
+ * ビューは作ったノードごとキー番号で直接写像するキャッシュ (VIEW_CACHE_SIZE個) に置き、よく引くキーでは作り直さない。
+ * 置換処理用の品詞ごとの並びもヒープ外 (ダイレクトバッファ) に前計算する。
+ * 追加した文はヒープ上の小さなモデルに持ち、検索時にファイルの後続ノードと合わせる
+ * (並び順と出現回数はNgramLanguageModel.appendと同じになる)。
+ * ヒープに残るのは、語彙表とのID変換表・表層形ごとの頻度・文頭キーの一覧・ビューのキャッシュ・追加分のモデル。
+ * @author kawami
+ *
+ */
+public class OffHeapNgramModel extends NgramModel {
+	private static final int VIEW_CACHE_SIZE = 1 << 14;
+
+	private final int n;
+	private final Vocabulary vocabulary;
+	private final NgramModelFile file;
+	private final int[] globalIds; // ファイルのローカルID → 語彙表のID
+	private final int[] localIds; // 語彙表のID → ファイルのローカルID (ファイルにない語は-1)
+	private final Map<String, Integer> wordFreqMap = new ConcurrentHashMap<>(); // 追記中も読めるように
+	private final AtomicReferenceArray<SuccessorView> viewCache;
+	private final ThreadLocal<int[]> keyBuffer; // ローカルIDに直したキー (検索ごとに配列を作らない)
+	private final IntBuffer replacementOffsets; // キーごとの開始位置 (K+1個)
+	private final IntBuffer replacementNodes; // 置換の対象になる後続ノードの位置 (キーごとに品詞の順、同じ品詞は登録順)
+	private final IntBuffer replacementClasses; // replacementNodesの各ノードの品詞
+	private volatile NgramLanguageModel appended; // 追加分 (なければnull)
+	private volatile Heads heads;
+
+	private OffHeapNgramModel(NgramModelFile file, Vocabulary vocabulary) {
+		this.n = file.getN();
+		this.vocabulary = vocabulary;
+		this.file = file;
+		this.globalIds = file.internVocabulary(vocabulary);
+		this.localIds = new int[vocabulary.size()];
+		Arrays.fill(this.localIds, -1);
+		for (int i = 0; i < this.globalIds.length; i++) {
+			this.localIds[this.globalIds[i]] = i;
+		}
+		for (int j = 0; j < file.getNodeCount(); j++) {
+			SudachiToken token = vocabulary.get(this.globalIds[file.getSuccessorId(j)]);
+			if (token != null)
+				this.wordFreqMap.merge(token.surface(), 1, Integer::sum);
+		}
+		this.keyBuffer = ThreadLocal.withInitial(() -> new int[this.n - 1]);
+		this.viewCache = new AtomicReferenceArray<>(
+				Math.min(VIEW_CACHE_SIZE, Integer.highestOneBit(Math.max(1, file.getKeyCount())) * 2));
+		this.replacementOffsets = allocateInts(file.getKeyCount() + 1);
+		this.replacementNodes = buildReplacements();
+		this.replacementClasses = allocateInts(this.replacementNodes.capacity());
+		for (int i = 0; i < this.replacementNodes.capacity(); i++)
+			this.replacementClasses.put(i, posClassAt(this.replacementNodes.get(i)));
+		this.heads = buildHeads();
+	}
+
+	/**
+	 * モデルのファイルをメモリマップして開く
+	 */
+	public static OffHeapNgramModel open(Path path, Vocabulary vocabulary) throws IOException {
+		if (vocabulary.isScoped())
+			throw new IllegalArgumentException("a mapped model needs the shared vocabulary");
+		return new OffHeapNgramModel(NgramModelFile.open(path), vocabulary);
+	}
+
+	public int getN() {
+		return this.n;
+	}
+
+	public Vocabulary getVocabulary() {
+		return this.vocabulary;
+	}
+
+	public List<SudachiNode> findNextCandidates(SudachiNode node) {
+		return findCandidates(node.getIds(), 1);
+	}
+
+	public List<SudachiNode> findSiblingCandidates(SudachiNode node) {
+		return findCandidates(node.getIds(), 0);
+	}
+
+	public List<Entry<SudachiNodeKey, List<SudachiNode>>> findHead(int min) {
+		return this.heads.findHead(min);
+	}
+
+	public int getFreq(String surface) {
+		Integer freq = this.wordFreqMap.get(surface);
+		return freq == null ? 0 : freq;
+	}
+
+	public synchronized void append(NgramLanguageModel delta) {
+		// 初出のN-gramだけ単語頻度に数える
+		delta.forEachEntry((keyIds, nodes) -> {
+			List<SudachiNode> existing = findCandidates(keyIds, 0);
+			Set<Integer> existingIds = new HashSet<>();
+			if (existing != null) {
+				for (SudachiNode node : existing) {
+					existingIds.add(node.getLastId());
+				}
+			}
+			for (SudachiNode node : nodes) {
+				SudachiToken token = node.getLastToken();
+				if (token != null && !existingIds.contains(node.getLastId()))
+					this.wordFreqMap.merge(token.surface(), 1, Integer::sum);
+			}
+		});
+		NgramLanguageModel current = this.appended;
+		if (current == null)
+			current = new NgramLanguageModel(n, this.vocabulary);
+		current.append(delta);
+		this.appended = current;
+		this.heads = buildHeads();
+		invalidateReachabilityIndex();
+	}
+
+	/**
+	 * 追加分を含めて書き出す (一旦ヒープ上に読み込む)
+	 */
+	public synchronized void save(String path) {
+		NgramLanguageModel model = new NgramLanguageModel(n, this.vocabulary);
+		model.load(this.file);
+		if (this.appended != null)
+			model.append(this.appended);
+		model.save(path);
+	}
+
+	SudachiNode[] findNextReplacements(SudachiNode keyNode, int posClass) {
+		return findReplacements(keyNode.getIds(), 1, posClass);
+	}
+
+	SudachiNode[] findSiblingReplacements(SudachiNode node, int posClass) {
+		return findReplacements(node.getIds(), 0, posClass);
+	}
+
+	void forEachEntry(BiConsumer<int[], List<SudachiNode>> action) {
+		for (int k = 0; k < this.file.getKeyCount(); k++) {
+			int[] keyIds = getKeyIds(k);
+			action.accept(keyIds, findCandidates(keyIds, 0));
+		}
+		NgramLanguageModel appended = this.appended;
+		if (appended != null) {
+			appended.forEachEntry((keyIds, nodes) -> {
+				if (findKey(keyIds, 0) < 0)
+					action.accept(keyIds, nodes);
+			});
+		}
+	}
+
+	/**
+	 * ids[offset]からN-1個をキーとして、ファイルと追加分の後続ノードを合わせて返す
+	 */
+	private List<SudachiNode> findCandidates(int[] ids, int offset) {
+		int keyIndex = findKey(ids, offset);
+		List<SudachiNode> stored = keyIndex < 0 ? null : getView(keyIndex);
+		NgramLanguageModel appended = this.appended;
+		List<SudachiNode> added = appended == null ? null : appended.findCandidates(ids, offset);
+		if (added == null)
+			return stored;
+		if (stored == null)
+			return added;
+		// ファイルにあるノードは出現回数を足し、新しいノードは後ろに並べる
+		// (ビューのノードはキャッシュで共有しているので、足す場合は別のノードを作る)
+		Map<Integer, SudachiNode> addedMap = new HashMap<>();
+		for (SudachiNode node : added) {
+			addedMap.put(node.getLastId(), node);
+		}
+		List<SudachiNode> merged = new ArrayList<>(stored.size() + added.size());
+		for (SudachiNode node : stored) {
+			SudachiNode same = addedMap.remove(node.getLastId());
+			if (same != null) {
+				SudachiNode sum = new SudachiNode(node.getIds(), this.vocabulary);
+				sum.addFreq(node.getFreq() + same.getFreq() - 1);
+				node = sum;
+			}
+			merged.add(node);
+		}
+		for (SudachiNode node : added) {
+			if (addedMap.containsKey(node.getLastId()))
+				merged.add(node);
+		}
+		return merged;
+	}
+
+	/**
+	 * @return ファイル上のキーの番号。なければ-1
+	 */
+	private int findKey(int[] ids, int offset) {
+		int[] key = this.keyBuffer.get();
+		for (int i = 0; i < key.length; i++) {
+			int id = ids[offset + i];
+			if (id >= this.localIds.length || this.localIds[id] < 0)
+				return -1;
+			key[i] = this.localIds[id];
+		}
+		return this.file.findKey(key, 0);
+	}
+
+	/**
+	 * キーの後続ノードのビュー (キャッシュになければ作って置き換える)
+	 */
+	private SuccessorView getView(int keyIndex) {
+		int slot = keyIndex & (this.viewCache.length() - 1);
+		SuccessorView view = this.viewCache.get(slot);
+		if (view == null || view.keyIndex != keyIndex) {
+			view = new SuccessorView(getKeyIds(keyIndex), keyIndex);
+			this.viewCache.set(slot, view);
+		}
+		return view;
+	}
+
+	private int posClassAt(int nodeIndex) {
+		return this.vocabulary.get(this.globalIds[this.file.getSuccessorId(nodeIndex)]).getPosClass();
+	}
+
+	/**
+	 * キーごとに置換の対象になる後続ノード (文末と助詞を除く) を品詞の順に並べる (replacementOffsetsも埋める)
+	 */
+	private IntBuffer buildReplacements() {
+		List<int[]> perKey = new ArrayList<>(this.file.getKeyCount());
+		int total = 0;
+		for (int k = 0; k < this.file.getKeyCount(); k++) {
+			int start = this.file.getSuccessorStart(k), end = this.file.getSuccessorEnd(k);
+			List<Integer> targets = new ArrayList<>(end - start);
+			for (int j = start; j < end; j++) {
+				SudachiToken token = this.vocabulary.get(this.globalIds[this.file.getSuccessorId(j)]);
+				if (token != null && !token.isParticle())
+					targets.add(j);
+			}
+			targets.sort((a, b) -> Integer.compare(posClassAt(a), posClassAt(b))); // 安定ソートなので同じ品詞は登録順
+			int[] positions = new int[targets.size()];
+			for (int i = 0; i < positions.length; i++)
+				positions[i] = targets.get(i);
+			perKey.add(positions);
+			this.replacementOffsets.put(k, total);
+			total += positions.length;
+		}
+		this.replacementOffsets.put(this.file.getKeyCount(), total);
+		IntBuffer replacementNodes = allocateInts(total);
+		for (int[] positions : perKey)
+			replacementNodes.put(positions);
+		return replacementNodes;
+	}
+
+	private int[] getKeyIds(int keyIndex) {
+		int[] keyIds = new int[n - 1];
+		for (int i = 0; i < keyIds.length; i++) {
+			keyIds[i] = this.globalIds[this.file.getKeyId(keyIndex, i)];
+		}
+		return keyIds;
+	}
+
+	/**
+	 * 置換処理の候補: ids[offset]からN-1個をキーとする後続ノードのうち、品詞がposClassのもの
+	 * 追加分にないキーは前計算した並びを二分探索する。
+	 */
+	private SudachiNode[] findReplacements(int[] ids, int offset, int posClass) {
+		NgramLanguageModel appended = this.appended;
+		if (appended != null && appended.findCandidates(ids, offset) != null)
+			return findReplacements(findCandidates(ids, offset), posClass);
+		int keyIndex = findKey(ids, offset);
+		if (keyIndex < 0)
+			return null;
+		int low = this.replacementOffsets.get(keyIndex), high = this.replacementOffsets.get(keyIndex + 1);
+		int from = low, to = high;
+		// posClassの最初の位置
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (this.replacementClasses.get(mid) < posClass)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		int end = from;
+		while (end < high && this.replacementClasses.get(end) == posClass)
+			end++;
+		if (from == end)
+			return null;
+		SuccessorView view = getView(keyIndex);
+		SudachiNode[] replacements = new SudachiNode[end - from];
+		for (int i = 0; i < replacements.length; i++)
+			replacements[i] = view.get(this.replacementNodes.get(from + i) - view.start);
+		return replacements;
+	}
+
+	private static IntBuffer allocateInts(int size) {
+		return ByteBuffer.allocateDirect(Math.max(1, size) * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	private static SudachiNode[] findReplacements(List<SudachiNode> nodes, int posClass) {
+		if (nodes == null)
+			return null;
+		List<SudachiNode> replacements = new ArrayList<>();
+		for (SudachiNode node : nodes) {
+			SudachiToken token = node.getLastToken();
+			if (token != null && !token.isParticle() && token.getPosClass() == posClass)
+				replacements.add(node);
+		}
+		return replacements.isEmpty() ? null : replacements.toArray(new SudachiNode[replacements.size()]);
+	}
+
+	/**
+	 * 文頭キーを後続ノード数の多い順に並べる (ファイルのキーはローカルIDの順なので、文頭キーは先頭にまとまっている)
+	 */
+	private Heads buildHeads() {
+		List<Entry<SudachiNodeKey, List<SudachiNode>>> entries = new ArrayList<>();
+		for (int k = 0; k < this.file.getKeyCount() && this.file.getKeyId(k, 0) == 0; k++) {
+			int[] keyIds = getKeyIds(k);
+			entries.add(new SimpleImmutableEntry<>(new SudachiNodeKey(keyIds, 0, n - 1, this.vocabulary),
+					findCandidates(keyIds, 0)));
+		}
+		NgramLanguageModel appended = this.appended;
+		if (appended != null) {
+			for (Entry<SudachiNodeKey, List<SudachiNode>> head : appended.findHead()) {
+				if (findKey(head.getKey().getIds(), 0) < 0)
+					entries.add(new SimpleImmutableEntry<>(head.getKey(), head.getValue()));
+			}
+		}
+		entries.sort((o1, o2) -> {
+			int cmp = Integer.compare(o2.getValue().size(), o1.getValue().size());
+			if (cmp != 0)
+				return cmp;
+			int[] a = o1.getKey().getIds(), b = o2.getKey().getIds();
+			for (int i = 0; i < a.length; i++) {
+				cmp = Integer.compare(a[i], b[i]);
+				if (cmp != 0)
+					return cmp;
+			}
+			return 0;
+		});
+		return new Heads(entries);
+	}
+
+	private static final class Heads {
+		private final List<Entry<SudachiNodeKey, List<SudachiNode>>> entries;
+		private final int[] sizes;
+
+		Heads(List<Entry<SudachiNodeKey, List<SudachiNode>>> entries) {
+			this.entries = Collections.unmodifiableList(entries);
+			this.sizes = new int[entries.size()];
+			for (int i = 0; i < this.sizes.length; i++) {
+				this.sizes[i] = entries.get(i).getValue().size();
+			}
+		}
+
+		List<Entry<SudachiNodeKey, List<SudachiNode>>> findHead(int min) {
+			int low = 0, high = this.sizes.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (this.sizes[mid] > min)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return this.entries.subList(0, low);
+		}
+	}
+
+	/**
+	 * ファイル上の1つのキーの後続ノードのビュー (取り出すたびにノードを作る)
+	 */
+	private final class SuccessorView extends AbstractList<SudachiNode> implements RandomAccess {
+		private final int keyIndex;
+		private final int[] keyIds;
+		private final int start;
+		private final int end;
+		private final AtomicReferenceArray<SudachiNode> nodes; // 作ったノード (別スレッドにも作り終えた状態で見せる)
+
+		SuccessorView(int[] keyIds, int keyIndex) {
+			this.keyIndex = keyIndex;
+			this.keyIds = keyIds;
+			this.start = file.getSuccessorStart(keyIndex);
+			this.end = file.getSuccessorEnd(keyIndex);
+			this.nodes = new AtomicReferenceArray<>(this.end - this.start);
+		}
+
+		@Override
+		public SudachiNode get(int index) {
+			if (index < 0 || index >= size())
+				throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+			SudachiNode node = this.nodes.get(index);
+			if (node != null)
+				return node;
+			int[] ids = Arrays.copyOf(this.keyIds, n);
+			ids[n - 1] = globalIds[file.getSuccessorId(this.start + index)];
+			node = new SudachiNode(ids, vocabulary);
+			node.addFreq(file.getCount(this.start + index) - 1);
+			this.nodes.set(index, node);
+			return node;
+		}
+
+		@Override
+		public int size() {
+			return this.end - this.start;
+		}
+	}
+}
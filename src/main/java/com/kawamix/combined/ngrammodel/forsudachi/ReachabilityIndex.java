@@ -0,0 +1,267 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 形態素の追加処理用の到達可能性索引
+ * (キー, 到達先の形態素) ごとに、キーからmaxLength個以内のノードをたどって到達先で終わる経路のうち
+ * 最もスコアの高いものを前計算しておく。スコアは 経路長 * 0.5 + 出現回数の平均。
+ * 経路はノードではなく末尾のIDと出現回数の列として、ヒープ外 (ダイレクトバッファ) のオープンアドレス法の表に持つ。
+ * 作成の手間が後続ノード数の累乗で増えないように、2個目以降のノードは出現回数の多いMAX_FANOUT個だけたどり、
+ * (キー, 到達先) の組がMAX_CONNECTIONSに達したら、スコアの低い方から半分の組を捨て、以後はそのスコア以下の組を加えない。
+ * (残るのは、たどる順番によらず、最終的な下限より最良のスコアが高い組のすべて)
+ * <pre>
+ * 1要素: int[N] キー + 到達先, int 経路長 (0は空き), double スコア, int[maxLength] 末尾のID, int[maxLength] 出現回数
+ * </pre>
+ * @author kawami
+ *
+ */
+final class ReachabilityIndex {
+	static final int MAX_FANOUT = 32;
+	static final int MAX_CONNECTIONS = 1 << 21;
+
+	private final int n;
+	private final int maxLength;
+	private final int maxConnections;
+	private final NgramModel model;
+	private final Vocabulary vocabulary;
+	private final int slotSize;
+	private final int lengthOffset, scoreOffset, idsOffset, freqsOffset;
+	private ByteBuffer table;
+	private int capacity; // 2の累乗
+	private int size;
+	private boolean full; // 上限に達して組を捨てた
+	private double minScore = Double.NEGATIVE_INFINITY; // これ以下のスコアの組は加えない
+
+	ReachabilityIndex(NgramModel model, int maxLength) {
+		this(model, maxLength, MAX_CONNECTIONS);
+	}
+
+	/**
+	 * @param maxConnections 残す (キー, 到達先) の組の上限
+	 */
+	ReachabilityIndex(NgramModel model, int maxLength, int maxConnections) {
+		this.n = model.getN();
+		this.maxLength = maxLength;
+		this.maxConnections = maxConnections;
+		this.model = model;
+		this.vocabulary = model.getVocabulary();
+		this.lengthOffset = n * 4;
+		this.scoreOffset = this.lengthOffset + 4;
+		this.idsOffset = this.scoreOffset + 8;
+		this.freqsOffset = this.idsOffset + maxLength * 4;
+		this.slotSize = this.freqsOffset + maxLength * 4;
+		this.capacity = 1024;
+		this.table = allocate(this.capacity);
+		int[] probe = new int[n];
+		int[] pathIds = new int[maxLength];
+		int[] pathFreqs = new int[maxLength];
+		model.forEachEntry((keyIds, nodes) -> {
+			System.arraycopy(keyIds, 0, probe, 0, n - 1);
+			search(nodes, 0, 0, pathIds, pathFreqs, probe);
+		});
+	}
+
+	int getMaxLength() {
+		return this.maxLength;
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return 組の数が上限に達して、スコアの低い組を捨てたか
+	 */
+	boolean isFull() {
+		return this.full;
+	}
+
+	/**
+	 * @return 残した組のスコアの下限 (この値以下の組は捨てた。捨てていなければ負の無限大)
+	 */
+	double getMinScore() {
+		return this.minScore;
+	}
+
+	/**
+	 * @param ids 先頭N-1個がキー、N番目が到達先の形態素 (汎用言語モデルの後続ノードのID列をそのまま渡せる)
+	 * @return 最良の経路の位置 (getScore・getPathに渡す)。なければ-1
+	 */
+	int find(int[] ids) {
+		int mask = this.capacity - 1;
+		for (int slot = hash(ids) & mask;; slot = (slot + 1) & mask) {
+			int base = slot * this.slotSize;
+			if (this.table.getInt(base + this.lengthOffset) == 0)
+				return -1;
+			if (matches(this.table, base, ids))
+				return slot;
+		}
+	}
+
+	double getScore(int slot) {
+		return this.table.getDouble(slot * this.slotSize + this.scoreOffset);
+	}
+
+	/**
+	 * 経路のノードを作って返す
+	 */
+	List<SudachiNode> getPath(int slot) {
+		int base = slot * this.slotSize;
+		int length = this.table.getInt(base + this.lengthOffset);
+		// キー + 経路の末尾のID の列を、N個ずつずらしながらノードにする
+		int[] sequence = new int[n - 1 + length];
+		for (int i = 0; i < n - 1; i++)
+			sequence[i] = this.table.getInt(base + i * 4);
+		for (int i = 0; i < length; i++)
+			sequence[n - 1 + i] = this.table.getInt(base + this.idsOffset + i * 4);
+		List<SudachiNode> path = new ArrayList<>(length);
+		for (int i = 0; i < length; i++) {
+			int[] ids = new int[n];
+			System.arraycopy(sequence, i, ids, 0, n);
+			SudachiNode node = new SudachiNode(ids, this.vocabulary);
+			node.addFreq(this.table.getInt(base + this.freqsOffset + i * 4) - 1);
+			path.add(node);
+		}
+		return path;
+	}
+
+	private void search(List<SudachiNode> nodes, int depth, long freqSum, int[] pathIds, int[] pathFreqs,
+			int[] probe) {
+		for (SudachiNode node : nodes) {
+			pathIds[depth] = node.getLastId();
+			pathFreqs[depth] = node.getFreq();
+			int length = depth + 1;
+			long sum = freqSum + node.getFreq();
+			if (length > 1) {
+				probe[n - 1] = node.getLastId();
+				double score = length * 0.5 + (double) sum / length;
+				put(probe, score, length, pathIds, pathFreqs);
+			}
+			if (length < this.maxLength) {
+				List<SudachiNode> next = this.model.findNextCandidates(node);
+				if (next != null)
+					search(limitFanOut(next), length, sum, pathIds, pathFreqs, probe);
+			}
+		}
+	}
+
+	/**
+	 * 後続ノードがMAX_FANOUTより多ければ、出現回数の多い順 (同数なら登録順) にMAX_FANOUT個を返す
+	 */
+	private static List<SudachiNode> limitFanOut(List<SudachiNode> nodes) {
+		if (nodes.size() <= MAX_FANOUT)
+			return nodes;
+		List<SudachiNode> sorted = new ArrayList<>(nodes);
+		sorted.sort((a, b) -> Integer.compare(b.getFreq(), a.getFreq()));
+		return sorted.subList(0, MAX_FANOUT);
+	}
+
+	/**
+	 * 同じ (キー, 到達先) がなければ加え、あればスコアが高い場合だけ置き換える
+	 * (同点なら先に見つかった、登録順で前の経路を残す)
+	 */
+	private void put(int[] ids, double score, int length, int[] pathIds, int[] pathFreqs) {
+		if (score <= this.minScore)
+			return;
+		if (this.size < this.maxConnections && (this.size + 1) * 2 > this.capacity)
+			rehash(this.capacity * 2);
+		int mask = this.capacity - 1;
+		for (int slot = hash(ids) & mask;; slot = (slot + 1) & mask) {
+			int base = slot * this.slotSize;
+			if (this.table.getInt(base + this.lengthOffset) == 0) {
+				if (this.size >= this.maxConnections) {
+					evict();
+					put(ids, score, length, pathIds, pathFreqs);
+					return;
+				}
+				for (int i = 0; i < n; i++)
+					this.table.putInt(base + i * 4, ids[i]);
+				this.size++;
+			} else if (!matches(this.table, base, ids)) {
+				continue;
+			} else if (this.table.getDouble(base + this.scoreOffset) >= score) {
+				return;
+			}
+			this.table.putInt(base + this.lengthOffset, length);
+			this.table.putDouble(base + this.scoreOffset, score);
+			for (int i = 0; i < length; i++) {
+				this.table.putInt(base + this.idsOffset + i * 4, pathIds[i]);
+				this.table.putInt(base + this.freqsOffset + i * 4, pathFreqs[i]);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * スコアの低い方から半分 (中央値以下) の組を捨て、以後は中央値以下の組を加えない
+	 * 捨てた組は、あとで見つかった経路のスコアも中央値以下なので、戻ってきても正しい最良の経路にはならない。
+	 */
+	private void evict() {
+		double[] scores = new double[this.size];
+		int count = 0;
+		for (int slot = 0; slot < this.capacity; slot++) {
+			int base = slot * this.slotSize;
+			if (this.table.getInt(base + this.lengthOffset) != 0)
+				scores[count++] = this.table.getDouble(base + this.scoreOffset);
+		}
+		Arrays.sort(scores);
+		this.minScore = scores[(count - 1) / 2];
+		this.full = true;
+		rehash(this.capacity);
+	}
+
+	/**
+	 * 表をnewCapacityの大きさで作り直す (minScore以下の組は移さない)
+	 */
+	private void rehash(int newCapacity) {
+		if ((long) newCapacity * this.slotSize > Integer.MAX_VALUE)
+			throw new IllegalStateException("reachability index too large: " + this.size + " connections");
+		ByteBuffer old = this.table;
+		int oldCapacity = this.capacity;
+		this.capacity = newCapacity;
+		this.table = allocate(this.capacity);
+		this.size = 0;
+		int mask = this.capacity - 1;
+		int[] ids = new int[n];
+		for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+			int oldBase = oldSlot * this.slotSize;
+			if (old.getInt(oldBase + this.lengthOffset) == 0
+					|| old.getDouble(oldBase + this.scoreOffset) <= this.minScore)
+				continue;
+			this.size++;
+			for (int i = 0; i < n; i++)
+				ids[i] = old.getInt(oldBase + i * 4);
+			int slot = hash(ids) & mask;
+			while (this.table.getInt(slot * this.slotSize + this.lengthOffset) != 0)
+				slot = (slot + 1) & mask;
+			for (int i = 0; i < this.slotSize; i += 4)
+				this.table.putInt(slot * this.slotSize + i, old.getInt(oldBase + i));
+		}
+	}
+
+	private ByteBuffer allocate(int slots) {
+		return ByteBuffer.allocateDirect(slots * this.slotSize).order(ByteOrder.nativeOrder());
+	}
+
+	private boolean matches(ByteBuffer table, int base, int[] ids) {
+		for (int i = 0; i < n; i++) {
+			if (table.getInt(base + i * 4) != ids[i])
+				return false;
+		}
+		return true;
+	}
+
+	private int hash(int[] ids) {
+		int h = 1;
+		for (int i = 0; i < n; i++) {
+			h = 31 * h + ids[i];
+		}
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,49 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 1つのキーの後続ノードを (品詞大分類, 活用形) ごとにまとめたもの
+ * 置換処理の対象にならない文末ノードと助詞はあらかじめ除く。
+ * @author kawami
+ *
+ */
+final class ReplacementBuckets {
+	private final int[] posClasses; // 昇順
+	private final SudachiNode[][] buckets;
+
+	ReplacementBuckets(List<SudachiNode> nodes) {
+		List<SudachiNode> targets = new ArrayList<>(nodes.size());
+		for (SudachiNode node : nodes) {
+			SudachiToken token = node.getLastToken();
+			if (token != null && !token.isParticle())
+				targets.add(node);
+		}
+		int[] classes = new int[targets.size()];
+		for (int i = 0; i < classes.length; i++)
+			classes[i] = targets.get(i).getLastToken().getPosClass();
+		int[] distinct = Arrays.stream(classes).distinct().sorted().toArray();
+		this.posClasses = distinct;
+		this.buckets = new SudachiNode[distinct.length][];
+		int[] sizes = new int[distinct.length];
+		for (int posClass : classes)
+			sizes[Arrays.binarySearch(distinct, posClass)]++;
+		for (int i = 0; i < distinct.length; i++)
+			this.buckets[i] = new SudachiNode[sizes[i]];
+		Arrays.fill(sizes, 0);
+		for (int i = 0; i < classes.length; i++) {
+			int bucket = Arrays.binarySearch(distinct, classes[i]);
+			this.buckets[bucket][sizes[bucket]++] = targets.get(i); // 登録順を保つ
+		}
+	}
+
+	/**
+	 * @return 品詞が一致する後続ノード (変更しないこと)。なければnull
+	 */
+	SudachiNode[] get(int posClass) {
+		int index = Arrays.binarySearch(this.posClasses, posClass);
+		return index < 0 ? null : this.buckets[index];
+	}
+}
@@ -0,0 +1,15 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+/**
+ * 後続ノードの選び方
+ * @author kawami
+ *
+ */
+public enum SamplingPolicy {
+	/** 一様に選ぶ */
+	UNIFORM,
+	/** 出現回数に比例して選ぶ */
+	FREQUENCY,
+	/** 出現回数の上位K個から一様に選ぶ */
+	TOP_K
+}
@@ -0,0 +1,140 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.Predicate;
+
+/**
+ * 1つのキーの後続ノードから標本を取るための前計算済みの表
+ * 出現回数の降順に並べた配列と、出現回数を重みとするWalkerのエイリアス表を持つ。
+ * @author kawami
+ *
+ */
+final class SuccessorSampler {
+	private static final int MAX_REJECTION = 8;
+
+	private final SudachiNode[] nodes; // 登録順
+	private final SudachiNode[] byFreq; // 出現回数の降順 (同数は登録順)
+	private final double[] probability;
+	private final int[] alias;
+
+	SuccessorSampler(List<SudachiNode> nodeList) {
+		this.nodes = nodeList.toArray(new SudachiNode[nodeList.size()]);
+		this.byFreq = this.nodes.clone();
+		Arrays.sort(this.byFreq, (o1, o2) -> Integer.compare(o2.getFreq(), o1.getFreq()));
+
+		int size = this.nodes.length;
+		this.probability = new double[size];
+		this.alias = new int[size];
+		long total = 0;
+		for (SudachiNode node : this.nodes)
+			total += node.getFreq();
+		double[] scaled = new double[size];
+		Deque<Integer> small = new ArrayDeque<>();
+		Deque<Integer> large = new ArrayDeque<>();
+		for (int i = 0; i < size; i++) {
+			scaled[i] = (double) this.nodes[i].getFreq() * size / total;
+			if (scaled[i] < 1.0)
+				small.push(i);
+			else
+				large.push(i);
+		}
+		while (!small.isEmpty() && !large.isEmpty()) {
+			int less = small.pop();
+			int more = large.pop();
+			this.probability[less] = scaled[less];
+			this.alias[less] = more;
+			scaled[more] = scaled[more] + scaled[less] - 1.0;
+			if (scaled[more] < 1.0)
+				small.push(more);
+			else
+				large.push(more);
+		}
+		while (!large.isEmpty())
+			this.probability[large.pop()] = 1.0;
+		while (!small.isEmpty())
+			this.probability[small.pop()] = 1.0;
+	}
+
+	int size() {
+		return this.nodes.length;
+	}
+
+	/**
+	 * 出現回数の降順に並べたノード (変更しないこと)
+	 */
+	SudachiNode[] getSortedByFreq() {
+		return this.byFreq;
+	}
+
+	SudachiNode sample(SamplingPolicy policy, int k, SplittableRandom rnd) {
+		switch (policy) {
+		case FREQUENCY:
+			int column = rnd.nextInt(this.nodes.length);
+			return rnd.nextDouble() < this.probability[column] ? this.nodes[column]
+					: this.nodes[this.alias[column]];
+		case TOP_K:
+			return this.byFreq[rnd.nextInt(Math.min(k, this.byFreq.length))];
+		default:
+			return this.nodes[rnd.nextInt(this.nodes.length)];
+		}
+	}
+
+	/**
+	 * acceptを満たすノードの中から選ぶ。該当するノードがなければnull
+	 */
+	SudachiNode sample(SamplingPolicy policy, int k, SplittableRandom rnd, Predicate<SudachiNode> accept) {
+		switch (policy) {
+		case FREQUENCY:
+			// ほとんどのノードは条件を満たすので、まず棄却法で試す
+			for (int i = 0; i < MAX_REJECTION; i++) {
+				SudachiNode node = sample(policy, k, rnd);
+				if (accept.test(node))
+					return node;
+			}
+			long total = 0;
+			for (SudachiNode node : this.nodes) {
+				if (accept.test(node))
+					total += node.getFreq();
+			}
+			if (total == 0)
+				return null;
+			long target = (long) (rnd.nextDouble() * total);
+			for (SudachiNode node : this.nodes) {
+				if (!accept.test(node))
+					continue;
+				target -= node.getFreq();
+				if (target < 0)
+					return node;
+			}
+			return null;
+		case TOP_K:
+			return pick(this.byFreq, k, rnd, accept);
+		default:
+			return pick(this.nodes, this.nodes.length, rnd, accept);
+		}
+	}
+
+	/**
+	 * 条件を満たす先頭からk個のうち1つを一様に選ぶ
+	 */
+	private static SudachiNode pick(SudachiNode[] nodes, int k, SplittableRandom rnd,
+			Predicate<SudachiNode> accept) {
+		int count = 0;
+		for (int i = 0; i < nodes.length && count < k; i++) {
+			if (accept.test(nodes[i]))
+				count++;
+		}
+		if (count == 0)
+			return null;
+		int index = rnd.nextInt(count);
+		for (SudachiNode node : nodes) {
+			if (accept.test(node) && index-- == 0)
+				return node;
+		}
+		return null;
+	}
+}
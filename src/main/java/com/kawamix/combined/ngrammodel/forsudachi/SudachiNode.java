@@ -1,32 +1,47 @@
 package com.kawamix.combined.ngrammodel.forsudachi;
 
-import java.io.Serializable;
+import java.util.Arrays;
 
-import com.worksap.nlp.sudachi.Morpheme;
-
-public class SudachiNode implements Serializable {
-	private Morpheme[] tokens;
+public class SudachiNode {
+	private final int[] ids;
+	private final Vocabulary vocabulary;
+	private final int hash;
 	private int freq;
 
-	public SudachiNode(Morpheme[] value) {
-		this.tokens = value;
+	/**
+	 * @param ids N個のトークンID (文頭・文末はVocabulary.BOUNDARY)
+	 */
+	public SudachiNode(int[] ids, Vocabulary vocabulary) {
+		this.ids = ids;
+		this.vocabulary = vocabulary;
+		this.hash = Arrays.hashCode(ids);
 		this.freq = 1;
 	}
 
-	public Morpheme[] getValue() {
-		return this.tokens;
+	public int[] getIds() {
+		return this.ids;
+	}
+
+	public int getLastId() {
+		return this.ids[this.ids.length - 1];
+	}
+
+	public SudachiToken getToken(int index) {
+		return this.vocabulary.get(this.ids[index]);
+	}
+
+	public SudachiToken getLastToken() {
+		return this.vocabulary.get(getLastId());
 	}
 
-	public Morpheme getLastToken() {
-		return this.tokens[this.tokens.length - 1];
+	public SudachiNodeKey getKey() {
+		return new SudachiNodeKey(this.ids, 0, this.ids.length - 1, this.vocabulary);
 	}
 
 	public String[] getString() {
-		if (this.tokens == null)
-			return null;
-		String[] str = new String[this.tokens.length];
+		String[] str = new String[this.ids.length];
 		for (int i = 0; i < str.length; i++) {
-			str[i] = this.tokens[i] == null ? null : this.tokens[i].surface();
+			str[i] = this.vocabulary.surface(this.ids[i]);
 		}
 		return str;
 	}
@@ -35,59 +50,39 @@ public class SudachiNode implements Serializable {
 		freq++;
 	}
 
+	public void addFreq(int count) {
+		freq += count;
+	}
+
 	public int getFreq() {
 		return this.freq;
 	}
 
 	public boolean isEOS() {
-		return this.tokens[this.tokens.length - 1] == null;
+		return getLastId() == Vocabulary.BOUNDARY;
 	}
 
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
 			return true;
-		if (getClass() != obj.getClass())
+		if (obj == null || getClass() != obj.getClass())
 			return false;
 		SudachiNode other = (SudachiNode) obj;
-		Morpheme[] otherTokens = other.tokens;
-		if (this.tokens == null || otherTokens == null)
-			return false;
-		if (this.tokens.length != otherTokens.length)
-			return false;
-		for (int i = 0; i < this.tokens.length; i++) {
-			Morpheme token1 = this.tokens[i];
-			Morpheme token2 = otherTokens[i];
-			if (token1 == null || token2 == null) {
-				if (token1 == null && token2 == null) {
-					continue;
-				} else {
-					return false;
-				}
-			}
-			if (!token1.surface().equals(token2.surface()))
-				return false;
-			if (!token1.partOfSpeech().equals(token2.partOfSpeech()))
-				return false;
-		}
-		return true;
+		return this.hash == other.hash && Arrays.equals(this.ids, other.ids);
 	}
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + (isEOS() ? "null".hashCode() : tokens[tokens.length - 1].surface().hashCode());
-		result = prime * result + toString().hashCode();
-		return result;
+		return this.hash;
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("[");
-		for (Morpheme token : this.tokens) {
-			sb.append(token == null ? "null" : token.surface());
+		for (int id : this.ids) {
+			sb.append(this.vocabulary.surface(id));
 			sb.append(",");
 		}
 		if (sb.length() > 1)
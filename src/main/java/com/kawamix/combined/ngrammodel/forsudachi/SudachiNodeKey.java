@@ -1,68 +1,51 @@
 package com.kawamix.combined.ngrammodel.forsudachi;
 
-import java.io.Serializable;
-
-import com.worksap.nlp.sudachi.Morpheme;
-
-public class SudachiNodeKey implements Serializable {
-	private Morpheme[] tokens;
+import java.util.Arrays;
+
+public class SudachiNodeKey {
+	private final int[] ids;
+	private final Vocabulary vocabulary;
+	private final int hash;
+
+	/**
+	 * @param ids ノードのトークンID列
+	 * @param offset キーの開始位置
+	 * @param length キーの長さ (N-1)
+	 */
+	public SudachiNodeKey(int[] ids, int offset, int length, Vocabulary vocabulary) {
+		this.ids = Arrays.copyOfRange(ids, offset, offset + length);
+		this.vocabulary = vocabulary;
+		this.hash = Arrays.hashCode(this.ids);
+	}
 
-	public SudachiNodeKey(Morpheme[] tokens) {
-		if (tokens.length < 1)
-			return;
-		this.tokens = new Morpheme[tokens.length - 1];
-		for (int i = 0; i < tokens.length - 1; i++) {
-			this.tokens[i] = tokens[i];
-		}
+	public int[] getIds() {
+		return this.ids;
 	}
 
 	public boolean isBOS() {
-		return this.tokens[0] == null;
+		return this.ids[0] == Vocabulary.BOUNDARY;
 	}
 
 	@Override
 	public boolean equals(Object obj) {
-		if (getClass() != obj.getClass())
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
 			return false;
-		SudachiNodeKey other = (SudachiNodeKey) obj;
-		Morpheme[] otherTokens = other.tokens;
-		if (this.tokens == null || otherTokens == null)
-			return false;
-		if (this.tokens.length != otherTokens.length)
-			return false;
-		for (int i = 0; i < this.tokens.length; i++) {
-			Morpheme token1 = this.tokens[i];
-			Morpheme token2 = otherTokens[i];
-			if (token1 == null || token2 == null) {
-				if (token1 == null && token2 == null) {
-					continue;
-				} else {
-					return false;
-				}
-			}
-			if (!token1.surface().equals(token2.surface()))
-				return false;
-			if (!token1.partOfSpeech().equals(token2.partOfSpeech()))
-				return false;
-		}
-		return true;
+		return Arrays.equals(this.ids, ((SudachiNodeKey) obj).ids);
 	}
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + (isBOS() ? "null".hashCode() : tokens[0].surface().hashCode());
-		result = prime * result + toString().hashCode();
-		return result;
+		return this.hash;
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("[");
-		for (Morpheme token : this.tokens) {
-			sb.append(token == null ? "null" : token.surface());
+		for (int id : this.ids) {
+			sb.append(this.vocabulary.surface(id));
 			sb.append(",");
 		}
 		if (sb.length() > 1)
@@ -0,0 +1,56 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.util.List;
+
+/**
+ * 語彙表に登録された形態素 (表層形, 品詞) の組
+ * Morphemeの代わりにノードから参照される。同じ組に対してインスタンスは1つだけ。
+ * @author kawami
+ *
+ */
+public final class SudachiToken {
+	private final int id;
+	private final String surface;
+	private final List<String> partOfSpeech;
+	private final int posClass;
+	private final boolean particle;
+
+	SudachiToken(int id, String surface, List<String> partOfSpeech, int posClass) {
+		this.id = id;
+		this.surface = surface;
+		this.partOfSpeech = partOfSpeech;
+		this.posClass = posClass;
+		this.particle = !partOfSpeech.isEmpty() && partOfSpeech.get(0).contains("助詞");
+	}
+
+	public int getId() {
+		return this.id;
+	}
+
+	public String surface() {
+		return this.surface;
+	}
+
+	public List<String> partOfSpeech() {
+		return this.partOfSpeech;
+	}
+
+	/**
+	 * (品詞大分類, 活用形) の組のID。置換処理で品詞の一致判定に使う
+	 */
+	public int getPosClass() {
+		return this.posClass;
+	}
+
+	/**
+	 * 助詞かどうか
+	 */
+	public boolean isParticle() {
+		return this.particle;
+	}
+
+	@Override
+	public String toString() {
+		return this.surface;
+	}
+}
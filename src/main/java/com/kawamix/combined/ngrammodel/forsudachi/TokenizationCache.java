@@ -0,0 +1,142 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.kawamix.combined.metrics.Counter;
+import com.kawamix.combined.metrics.MetricsRegistry;
+import com.kawamix.sudachi.SudachiTokenizer;
+import com.worksap.nlp.sudachi.Morpheme;
+
+/**
+ * 形態素解析結果のキャッシュ (LRU)
+ * NFC正規化した文字列をキーに、トークン列を持つ (Morphemeは持たない)。
+ * 正規化はキーだけに使い、解析は渡された文字列のまま行う (表層形は入力の表記のまま)。
+ * 語彙表にない語は登録せずに仮のトークンとして持つので、ユーザーの入力で共有の語彙表は増えない。
+ * モデルに入れる場合はそのモデルの語彙表でinternする。
+ * ロックはキーのハッシュで分けたストライプごとに取る。上限件数はストライプ全体の合計。
+ * @author kawami
+ *
+ */
+public class TokenizationCache {
+	private static final SudachiToken[] EMPTY = new SudachiToken[0];
+
+	private final Vocabulary vocabulary;
+	private final Stripe[] stripes;
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final Counter hitCounter;
+	private final Counter missCounter;
+
+	public TokenizationCache(Vocabulary vocabulary, int maxEntries) {
+		this(vocabulary, maxEntries, Runtime.getRuntime().availableProcessors() * 4, MetricsRegistry.NOOP);
+	}
+
+	/**
+	 * @param maxEntries 全体の上限件数
+	 * @param stripes ロックを分ける数
+	 * @param metricsRegistry tokenize.cache.hit / tokenize.cache.miss を記録する
+	 */
+	public TokenizationCache(Vocabulary vocabulary, int maxEntries, int stripes, MetricsRegistry metricsRegistry) {
+		if (vocabulary.isScoped())
+			throw new IllegalArgumentException("the cache needs the shared vocabulary");
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+		stripes = Math.max(1, Math.min(stripes, maxEntries));
+		this.vocabulary = vocabulary;
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			// 端数は先頭のストライプに割り振る
+			this.stripes[i] = new Stripe(maxEntries / stripes + (i < maxEntries % stripes ? 1 : 0));
+		}
+		this.hitCounter = metricsRegistry.counter("tokenize.cache.hit");
+		this.missCounter = metricsRegistry.counter("tokenize.cache.miss");
+	}
+
+	public Vocabulary getVocabulary() {
+		return this.vocabulary;
+	}
+
+	/**
+	 * キャッシュになければtokenizerで解析して登録する
+	 * 返した配列は共有するので変更しないこと。語彙表にない語のIDはVocabulary.UNREGISTERED。
+	 */
+	public SudachiToken[] tokenize(String text, SudachiTokenizer tokenizer) {
+		String key = Normalizer.normalize(text, Normalizer.Form.NFC);
+		Stripe stripe = this.stripes[(key.hashCode() & 0x7fffffff) % this.stripes.length];
+		SudachiToken[] tokens;
+		synchronized (stripe) {
+			tokens = stripe.get(key);
+		}
+		if (tokens != null) {
+			this.hitCount.increment();
+			this.hitCounter.increment();
+			return tokens;
+		}
+		this.missCount.increment();
+		this.missCounter.increment();
+		// 解析はロックの外で行う (同じ文字列が同時に来た場合はどちらも解析し、結果は同じになる)
+		List<Morpheme> morphemes = tokenizer.tokenize(text);
+		tokens = morphemes.isEmpty() ? EMPTY : new SudachiToken[morphemes.size()];
+		for (int i = 0; i < tokens.length; i++) {
+			Morpheme morpheme = morphemes.get(i);
+			tokens[i] = this.vocabulary.resolve(morpheme.surface(), morpheme.partOfSpeech());
+		}
+		synchronized (stripe) {
+			stripe.put(key, tokens);
+		}
+		return tokens;
+	}
+
+	public long getHitCount() {
+		return this.hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return this.missCount.sum();
+	}
+
+	/**
+	 * @return ヒット率 (まだ一度も引いていなければ0)
+	 */
+	public double getHitRate() {
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TokenizationCache(size=%d, hit=%d, miss=%d, hitRate=%.3f)", size(), getHitCount(),
+				getMissCount(), getHitRate());
+	}
+
+	private static class Stripe extends LinkedHashMap<String, SudachiToken[]> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+
+		Stripe(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SudachiToken[]> eldest) {
+			return size() > this.maxEntries;
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.worksap.nlp.sudachi.Morpheme;
+
+/**
+ * (表層形, 品詞) の組をint型のIDに変換する語彙表
+ * ID 0 は文頭・文末 (旧実装のnull) を表す。
+ * 特徴言語モデルと汎用言語モデルでIDを比較するため、通常は共有の語彙表を使う。
+ * リクエストごとの汎用言語モデルには createScope で作る子の語彙表を使う。
+ * 子の語彙表は共有の語彙表にある語はそのIDを返し、ない語だけを自分に登録する (IDはSCOPED_ID_BASE以上)。
+ * 子の語彙表はモデルと一緒に捨てられるので、共有の語彙表は特徴言語モデルの語だけで増えなくなる。
+ * (子の語彙表を作った後に共有の語彙表に加わった語は、その子の語彙表では別のIDのままになる)
+ * @author kawami
+ *
+ */
+public class Vocabulary {
+	public static final int BOUNDARY = 0;
+
+	/**
+	 * 子の語彙表で登録した語のIDの開始値 (共有の語彙表のIDはこれより小さい)
+	 */
+	public static final int SCOPED_ID_BASE = 1 << 30;
+
+	/**
+	 * 語彙表に登録していない仮のトークンのID
+	 */
+	public static final int UNREGISTERED = -1;
+
+	private static final Vocabulary DEFAULT = new Vocabulary();
+
+	private final Vocabulary parent; // 共有の語彙表ならnull
+	private final int idBase;
+
+	private final Map<String, SudachiToken> tokenMap = new ConcurrentHashMap<>();
+	private final Map<List<String>, List<String>> partOfSpeechMap = new ConcurrentHashMap<>();
+	private final Map<String, Integer> posClassMap = new ConcurrentHashMap<>();
+	private volatile SudachiToken[] tokens;
+	private volatile int size; // tokensの使用数
+
+	public Vocabulary() {
+		this(null);
+	}
+
+	private Vocabulary(Vocabulary parent) {
+		this.parent = parent;
+		this.idBase = parent == null ? 0 : SCOPED_ID_BASE;
+		this.tokens = new SudachiToken[parent == null ? 1024 : 64];
+		this.size = parent == null ? 1 : 0; // 共有の語彙表の0番は文頭・文末
+	}
+
+	public static Vocabulary getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * この語彙表を親とする子の語彙表を作る (リクエストごとの汎用言語モデル用)
+	 */
+	public Vocabulary createScope() {
+		if (this.parent != null)
+			throw new IllegalStateException("a scoped vocabulary cannot have children");
+		return new Vocabulary(this);
+	}
+
+	/**
+	 * @return 子の語彙表か
+	 */
+	public boolean isScoped() {
+		return this.parent != null;
+	}
+
+	/**
+	 * @return 共有の語彙表 (子の語彙表なら親)
+	 */
+	public Vocabulary getRoot() {
+		return this.parent == null ? this : this.parent;
+	}
+
+	public int id(Morpheme morpheme) {
+		if (morpheme == null)
+			return BOUNDARY;
+		return intern(morpheme.surface(), morpheme.partOfSpeech()).getId();
+	}
+
+	public SudachiToken intern(Morpheme morpheme) {
+		return intern(morpheme.surface(), morpheme.partOfSpeech());
+	}
+
+	public SudachiToken intern(String surface, List<String> partOfSpeech) {
+		String key = toKey(surface, partOfSpeech);
+		SudachiToken token = find(key);
+		if (token != null)
+			return token;
+		synchronized (this) {
+			token = this.tokenMap.get(key);
+			if (token != null)
+				return token;
+			int index = this.size;
+			if (this.idBase + index >= (this.parent == null ? SCOPED_ID_BASE : Integer.MAX_VALUE))
+				throw new IllegalStateException("vocabulary is full: " + index);
+			SudachiToken[] current = this.tokens;
+			if (index >= current.length) {
+				SudachiToken[] grown = new SudachiToken[current.length * 2];
+				System.arraycopy(current, 0, grown, 0, current.length);
+				current = grown;
+			}
+			token = getRoot().createToken(this.idBase + index, surface, partOfSpeech);
+			current[index] = token;
+			this.tokens = current;
+			this.size = index + 1;
+			this.tokenMap.put(key, token);
+		}
+		return token;
+	}
+
+	/**
+	 * 他の語彙表のトークンや仮のトークンを、この語彙表のトークンにする
+	 */
+	public SudachiToken intern(SudachiToken token) {
+		if (contains(token))
+			return token;
+		return intern(token.surface(), token.partOfSpeech());
+	}
+
+	/**
+	 * 登録済み (子の語彙表なら親を含む) ならそのトークン、なければ語彙表に登録しない仮のトークン (IDはUNREGISTERED) を返す
+	 * 仮のトークンは語彙表を増やさずに解析結果を持っておく場合に使い、モデルに入れる前にinternする。
+	 */
+	public SudachiToken resolve(String surface, List<String> partOfSpeech) {
+		SudachiToken token = find(toKey(surface, partOfSpeech));
+		if (token != null)
+			return token;
+		return getRoot().createToken(UNREGISTERED, surface, partOfSpeech);
+	}
+
+	/**
+	 * @param id トークンID
+	 * @return 対応するトークン。文頭・文末の場合はnull
+	 */
+	public SudachiToken get(int id) {
+		if (id == BOUNDARY)
+			return null;
+		if (this.parent != null && id < SCOPED_ID_BASE)
+			return this.parent.get(id);
+		return this.tokens[id - this.idBase];
+	}
+
+	public String surface(int id) {
+		return id == BOUNDARY ? null : get(id).surface();
+	}
+
+	/**
+	 * @return 共有の語彙表なら文頭・文末の分を含む語彙数 (IDの上限)。子の語彙表なら親の語彙数 + 自分に登録した語の数
+	 */
+	public int size() {
+		return this.parent == null ? this.size : this.parent.size() + this.size;
+	}
+
+	/**
+	 * @return 子の語彙表に登録した語 (ID順。登録した順になる)
+	 */
+	List<SudachiToken> getScopedTokens() {
+		if (this.parent == null)
+			throw new IllegalStateException("not a scoped vocabulary");
+		int count = this.size;
+		SudachiToken[] current = this.tokens;
+		List<SudachiToken> scoped = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			scoped.add(current[i]);
+		return scoped;
+	}
+
+	private SudachiToken find(String key) {
+		if (this.parent != null) {
+			SudachiToken token = this.parent.tokenMap.get(key);
+			if (token != null)
+				return token;
+		}
+		return this.tokenMap.get(key);
+	}
+
+	private boolean contains(SudachiToken token) {
+		int id = token.getId();
+		if (id <= BOUNDARY)
+			return false;
+		if (this.parent != null && id < SCOPED_ID_BASE)
+			return this.parent.contains(token);
+		int index = id - this.idBase;
+		return index < this.size && this.tokens[index] == token;
+	}
+
+	/**
+	 * 品詞リストと品詞の組のIDは共有の語彙表で管理する (子の語彙表とも比較できるように)
+	 */
+	private SudachiToken createToken(int id, String surface, List<String> partOfSpeech) {
+		List<String> interned = internPartOfSpeech(partOfSpeech);
+		int posClass;
+		synchronized (this.posClassMap) {
+			posClass = posClass(interned);
+		}
+		return new SudachiToken(id, surface, interned, posClass);
+	}
+
+	private List<String> internPartOfSpeech(List<String> partOfSpeech) {
+		List<String> interned = this.partOfSpeechMap.get(partOfSpeech);
+		if (interned != null)
+			return interned;
+		interned = Collections.unmodifiableList(new ArrayList<>(partOfSpeech));
+		this.partOfSpeechMap.put(interned, interned);
+		return interned;
+	}
+
+	/**
+	 * 品詞の大分類(0番目)と活用形(5番目)の組にIDを振る (posClassMapで同期して呼ぶ)
+	 */
+	private int posClass(List<String> partOfSpeech) {
+		String major = partOfSpeech.isEmpty() ? "" : partOfSpeech.get(0);
+		String conjugation = partOfSpeech.size() > 5 ? partOfSpeech.get(5) : "";
+		String key = major + "\t" + conjugation;
+		Integer posClass = this.posClassMap.get(key);
+		if (posClass == null) {
+			posClass = this.posClassMap.size();
+			this.posClassMap.put(key, posClass);
+		}
+		return posClass;
+	}
+
+	private static String toKey(String surface, List<String> partOfSpeech) {
+		StringBuilder sb = new StringBuilder(surface);
+		for (String pos : partOfSpeech) {
+			sb.append('\t');
+			sb.append(pos);
+		}
+		return sb.toString();
+	}
+}
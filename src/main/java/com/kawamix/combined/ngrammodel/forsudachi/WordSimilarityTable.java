@@ -0,0 +1,232 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+import com.kawamix.sudachi.SudachiTokenizer;
+import com.kawamix.word2vec.Word2VecModel;
+import com.worksap.nlp.sudachi.Morpheme;
+
+/**
+ * 特徴言語モデルの語彙それぞれについて、汎用語彙の中で類似度が閾値以上の単語を前計算した表
+ * 置換処理で毎回Word2Vecの類似度を計算する代わりに、この表を引く。
+ * 汎用語彙は汎用言語モデルを作るコーパス (リプライ文) から取る。表の語彙にない単語だけWord2Vecで計算することになる。
+ *
+ * <pre>
+ * int      magic ("HSIM"), version
+ * double   minSimilarity
+ * int, UTF 特徴語彙の数と単語 (昇順)
+ * int, UTF 汎用語彙の数と単語 (昇順)
+ * int[F+1] 各特徴語の近傍の開始位置
+ * int[]    近傍の汎用語の番号 (特徴語ごとに昇順)
+ * float[]  類似度
+ * </pre>
+ * @author kawami
+ *
+ */
+public class WordSimilarityTable {
+	private static final int MAGIC = 0x4853494D;
+	private static final int VERSION = 1;
+
+	private final double minSimilarity;
+	private final String[] featuredWords;
+	private final String[] generalWords;
+	private final int[] offsets;
+	private final int[] neighbors;
+	private final float[] similarities;
+	private final Map<String, Integer> featuredIndex = new HashMap<>();
+	private final Map<String, Integer> generalIndex = new HashMap<>();
+
+	private WordSimilarityTable(double minSimilarity, String[] featuredWords, String[] generalWords, int[] offsets,
+			int[] neighbors, float[] similarities) {
+		this.minSimilarity = minSimilarity;
+		this.featuredWords = featuredWords;
+		this.generalWords = generalWords;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		this.similarities = similarities;
+		for (int i = 0; i < featuredWords.length; i++)
+			this.featuredIndex.put(featuredWords[i], i);
+		for (int i = 0; i < generalWords.length; i++)
+			this.generalIndex.put(generalWords[i], i);
+	}
+
+	/**
+	 * 表を作る (オフライン処理)
+	 * @param featuredWords 特徴言語モデルの語彙
+	 * @param generalWords 汎用言語モデル側の語彙
+	 * @param minSimilarity これ未満の類似度は保存しない
+	 */
+	public static WordSimilarityTable build(Collection<String> featuredWords, Collection<String> generalWords,
+			Word2VecModel word2VecModel, double minSimilarity) {
+		String[] featured = new TreeSet<>(featuredWords).toArray(new String[0]);
+		String[] general = new TreeSet<>(generalWords).toArray(new String[0]);
+
+		int[][] neighborList = new int[featured.length][];
+		float[][] similarityList = new float[featured.length][];
+		IntStream.range(0, featured.length).parallel().forEach(f -> {
+			int[] ids = new int[16];
+			float[] values = new float[16];
+			int size = 0;
+			for (int g = 0; g < general.length; g++) {
+				double similarity = word2VecModel.similarity(general[g], featured[f]);
+				if (!(similarity >= minSimilarity))
+					continue;
+				if (size == ids.length) {
+					ids = Arrays.copyOf(ids, size * 2);
+					values = Arrays.copyOf(values, size * 2);
+				}
+				ids[size] = g;
+				values[size] = (float) similarity;
+				size++;
+			}
+			neighborList[f] = Arrays.copyOf(ids, size);
+			similarityList[f] = Arrays.copyOf(values, size);
+		});
+
+		int[] offsets = new int[featured.length + 1];
+		for (int f = 0; f < featured.length; f++)
+			offsets[f + 1] = offsets[f] + neighborList[f].length;
+		int[] neighbors = new int[offsets[featured.length]];
+		float[] similarities = new float[neighbors.length];
+		for (int f = 0; f < featured.length; f++) {
+			System.arraycopy(neighborList[f], 0, neighbors, offsets[f], neighborList[f].length);
+			System.arraycopy(similarityList[f], 0, similarities, offsets[f], similarityList[f].length);
+		}
+		return new WordSimilarityTable(minSimilarity, featured, general, offsets, neighbors, similarities);
+	}
+
+	/**
+	 * @return 類似度。閾値未満の場合は0、どちらかの単語が表の語彙にない場合はNaN
+	 */
+	public double similarity(String generalWord, String featuredWord) {
+		Integer f = this.featuredIndex.get(featuredWord);
+		Integer g = this.generalIndex.get(generalWord);
+		if (f == null || g == null)
+			return Double.NaN;
+		int index = Arrays.binarySearch(this.neighbors, this.offsets[f], this.offsets[f + 1], g);
+		return index < 0 ? 0.0 : this.similarities[index];
+	}
+
+	public double getMinSimilarity() {
+		return this.minSimilarity;
+	}
+
+	public int size() {
+		return this.neighbors.length;
+	}
+
+	public void save(Path path) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeDouble(this.minSimilarity);
+			writeWords(out, this.featuredWords);
+			writeWords(out, this.generalWords);
+			for (int offset : this.offsets)
+				out.writeInt(offset);
+			for (int neighbor : this.neighbors)
+				out.writeInt(neighbor);
+			for (float similarity : this.similarities)
+				out.writeFloat(similarity);
+		}
+	}
+
+	public static WordSimilarityTable load(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("not a word similarity table: " + path);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("unsupported word similarity table version: " + version);
+			double minSimilarity = in.readDouble();
+			String[] featured = readWords(in);
+			String[] general = readWords(in);
+			int[] offsets = new int[featured.length + 1];
+			for (int i = 0; i < offsets.length; i++)
+				offsets[i] = in.readInt();
+			int[] neighbors = new int[offsets[featured.length]];
+			for (int i = 0; i < neighbors.length; i++)
+				neighbors[i] = in.readInt();
+			float[] similarities = new float[neighbors.length];
+			for (int i = 0; i < similarities.length; i++)
+				similarities[i] = in.readFloat();
+			return new WordSimilarityTable(minSimilarity, featured, general, offsets, neighbors, similarities);
+		}
+	}
+
+	private static void writeWords(DataOutputStream out, String[] words) throws IOException {
+		out.writeInt(words.length);
+		for (String word : words)
+			out.writeUTF(word);
+	}
+
+	private static String[] readWords(DataInputStream in) throws IOException {
+		String[] words = new String[in.readInt()];
+		for (int i = 0; i < words.length; i++)
+			words[i] = in.readUTF();
+		return words;
+	}
+
+	/**
+	 * コーパスの各文を形態素解析し、置換の対象になる (助詞でない) 単語の表層形を集める
+	 */
+	public static Set<String> collectWords(List<String> lines, SudachiTokenizer tokenizer) {
+		Set<String> words = new TreeSet<>();
+		for (String line : lines) {
+			for (Morpheme morpheme : tokenizer.tokenize(line)) {
+				if (!morpheme.partOfSpeech().get(0).contains("助詞"))
+					words.add(morpheme.surface());
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * 特徴言語モデルのファイルの横に表を作る
+	 * 引数: 特徴言語モデルのパス 汎用コーパス(1行1文。リプライ文を書き出したもの) Word2Vecモデルのパス [最低類似度]
+	 * 最低類似度は文生成の置換の閾値 (0.4) 以下にすること。
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("usage: WordSimilarityTable <featuredModel> <generalCorpus> <word2vecModel> [minSim]");
+			return;
+		}
+		double minSimilarity = args.length > 3 ? Double.parseDouble(args[3]) : 0.4;
+		NgramModelFile modelFile = NgramModelFile.open(Paths.get(args[0]));
+		List<String> featuredWords = new ArrayList<>();
+		for (int i = 1; i < modelFile.getVocabularySize(); i++) {
+			// 助詞は置換の対象にならない
+			if (!modelFile.getPartOfSpeech(i).get(0).contains("助詞"))
+				featuredWords.add(modelFile.getSurface(i));
+		}
+		Set<String> generalWords = collectWords(Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8),
+				new SudachiTokenizer());
+		WordSimilarityTable table = build(featuredWords, generalWords, new Word2VecModel(args[2]), minSimilarity);
+		table.save(tablePath(args[0]));
+		System.out.println("saved " + table.size() + " pairs to " + tablePath(args[0]));
+	}
+
+	/**
+	 * 特徴言語モデルのパスに対応する表のパス
+	 */
+	public static Path tablePath(String featuredLanguageModelPath) {
+		return Paths.get(featuredLanguageModelPath + ".sim");
+	}
+}
@@ -0,0 +1,37 @@
+package com.kawamix.combined.reply;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * メモリ上のMapを使うReplyStore (テストやMongoDBのない環境用)
+ * @author kawami
+ *
+ */
+public class InMemoryReplyStore implements ReplyStore {
+	private final Map<Long, String> replies = new ConcurrentHashMap<>();
+
+	public InMemoryReplyStore() {
+	}
+
+	public InMemoryReplyStore(Map<Long, String> replies) {
+		this.replies.putAll(replies);
+	}
+
+	public void put(long id, String tweet) {
+		this.replies.put(id, tweet);
+	}
+
+	@Override
+	public List<String> findReplies(List<Long> idList) {
+		List<String> tweets = new ArrayList<>();
+		for (long id : idList) {
+			String tweet = this.replies.get(id);
+			if (tweet != null)
+				tweets.add(tweet);
+		}
+		return tweets;
+	}
+}
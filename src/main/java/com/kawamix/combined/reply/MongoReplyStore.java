@@ -0,0 +1,51 @@
+package com.kawamix.combined.reply;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * MongoDBのtweetpairコレクションから、全IDを1回の$inクエリで取得する
+ * @author kawami
+ *
+ */
+public class MongoReplyStore implements ReplyStore {
+	private final MongoCollection<Document> collection;
+
+	public MongoReplyStore(MongoCollection<Document> collection) {
+		this.collection = collection;
+	}
+
+	@Override
+	public List<String> findReplies(List<Long> idList) {
+		List<String> tweets = new ArrayList<>();
+		if (idList.isEmpty())
+			return tweets;
+		Document query = new Document("tweetid", new Document("$in", new ArrayList<>(new LinkedHashSet<>(idList))));
+		Document projection = new Document("tweetid", 1).append("tweet", 1);
+		Map<Long, String> found = new HashMap<>();
+		try (MongoCursor<Document> cursor = this.collection.find(query).projection(projection).iterator()) {
+			while (cursor.hasNext()) {
+				Document doc = cursor.next();
+				Object id = doc.get("tweetid");
+				String tweet = doc.getString("tweet");
+				if (!(id instanceof Number) || tweet == null)
+					continue;
+				found.putIfAbsent(((Number) id).longValue(), tweet.replaceAll("^ ", ""));
+			}
+		}
+		for (long id : idList) {
+			String tweet = found.get(id);
+			if (tweet != null)
+				tweets.add(tweet);
+		}
+		return tweets;
+	}
+}
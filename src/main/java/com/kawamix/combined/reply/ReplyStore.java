@@ -0,0 +1,17 @@
+package com.kawamix.combined.reply;
+
+import java.util.List;
+
+/**
+ * 類似文のIDからリプライ文を引く
+ * @author kawami
+ *
+ */
+public interface ReplyStore {
+	/**
+	 * IDに対応するリプライ文をまとめて取得する
+	 * @param idList 類似文のIDのリスト
+	 * @return idListの順番に並べたリプライ文 (見つからないIDは飛ばす)
+	 */
+	List<String> findReplies(List<Long> idList);
+}
@@ -0,0 +1,82 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CompactionReportTest {
+
+	/**
+	 * 2-gram: 文頭→A(4), A→B(3), B→文末(3), A→C(1), C→文末(1)
+	 */
+	private static NgramLanguageModel model(TestCorpus corpus) {
+		return corpus.model(2, "A B", "A B", "A B", "A C");
+	}
+
+	@Test
+	public void countsNodesDroppedByMinCountAndUnreachableKeys() {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		NgramLanguageModel model = model(corpus);
+		CompactionReport report = model.compact(new CompactionOptions().setMinCount(2));
+
+		assertEquals(4, report.getOriginalKeyCount());
+		assertEquals(5, report.getOriginalNodeCount());
+		assertEquals(3, report.getKeptKeyCount());
+		assertEquals(3, report.getKeptNodeCount());
+		assertEquals(1, report.getDroppedByMinCount()); // A→C
+		assertEquals(1, report.getDroppedUnreachable()); // C→文末
+		assertEquals(0, report.getDroppedByTopK());
+		assertEquals(0, report.getDroppedByMaxBytes());
+		assertEquals(2, report.getDroppedOccurrences());
+		assertEquals(2, report.getEffectiveMinCount());
+		assertAllCounted(report);
+
+		NgramLanguageModel compacted = report.getCompactedModel();
+		assertEquals("B:3", TestCorpus.surfaces(compacted.findNextCandidates(corpus.node("", "A"))));
+		assertNull(compacted.findNextCandidates(corpus.node("A", "C")));
+		// 元のモデルは変わらない
+		assertEquals(5, model.getNodeCount());
+	}
+
+	@Test
+	public void countsNodesDroppedByTopK() {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		CompactionReport report = model(corpus).compact(new CompactionOptions().setTopK(1));
+		assertEquals(1, report.getDroppedByTopK());
+		assertEquals(0, report.getDroppedByMinCount());
+		assertEquals(1, report.getDroppedUnreachable());
+		assertAllCounted(report);
+	}
+
+	@Test
+	public void keepsTheMostFrequentSuccessorOfEveryKey() {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		CompactionReport report = model(corpus).compact(new CompactionOptions().setMinCount(100));
+		// 下限を超えるノードがなくても、たどれるキーには最多の後続ノードを1個残す
+		assertEquals(3, report.getKeptNodeCount());
+		assertEquals(1, report.getDroppedByMinCount());
+		assertAllCounted(report);
+	}
+
+	@Test
+	public void raisesTheMinCountToMeetTheMemoryBudget() {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		NgramLanguageModel model = model(corpus);
+		CompactionReport unlimited = model.compact(new CompactionOptions());
+		assertEquals(0, unlimited.getOriginalNodeCount() - unlimited.getKeptNodeCount());
+		CompactionReport report = model
+				.compact(new CompactionOptions().setMaxBytes(unlimited.getCompactedBytes() - 1));
+		assertTrue(report.getEffectiveMinCount() > 1);
+		assertEquals(1, report.getDroppedByMaxBytes());
+		assertEquals(0, report.getDroppedByMinCount());
+		assertAllCounted(report);
+	}
+
+	private static void assertAllCounted(CompactionReport report) {
+		assertEquals(report.getOriginalNodeCount(),
+				report.getKeptNodeCount() + report.getDroppedByMinCount() + report.getDroppedByMaxBytes()
+						+ report.getDroppedByTopK() + report.getDroppedUnreachable());
+	}
+}
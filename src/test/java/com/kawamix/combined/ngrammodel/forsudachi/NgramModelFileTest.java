@@ -0,0 +1,129 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NgramModelFileTest {
+	private static final String[] TEXTS = { "私 は/p 犬 が/p 好き", "私 は/p 猫 が/p 好き", "私 は/p 犬 です",
+			"犬 は/p 走る/v" };
+
+	private Path directory;
+
+	@Before
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("ngram-model-file");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+			for (Path file : files)
+				Files.delete(file);
+		}
+		Files.delete(this.directory);
+	}
+
+	@Test
+	public void roundTripKeepsEveryNgram() throws IOException {
+		NgramLanguageModel original = new TestCorpus(new Vocabulary()).model(3, TEXTS);
+		Path path = this.directory.resolve("model.bin");
+		original.save(path.toString());
+
+		NgramModelFile file = NgramModelFile.open(path);
+		assertEquals(3, file.getN());
+		assertEquals(original.getKeyCount(), file.getKeyCount());
+		assertEquals(original.getNodeCount(), file.getNodeCount());
+		assertEquals(9, file.getVocabularySize()); // 8語 + 文頭・文末
+
+		// 別の語彙表に読み込んでも、表層形で見て同じ後続ノードになる
+		NgramLanguageModel loaded = new NgramLanguageModel(3, new Vocabulary());
+		assertTrue(loaded.loadSerializedFile(path.toString()));
+		assertSameSuccessors(original, loaded);
+		assertEquals(original.getFreq("好き"), loaded.getFreq("好き"));
+
+		OffHeapNgramModel mapped = OffHeapNgramModel.open(path, new Vocabulary());
+		assertSameSuccessors(original, mapped);
+	}
+
+	@Test
+	public void saveReplacesTheFileWithoutLeavingTemporaryFiles() throws IOException {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		Path path = this.directory.resolve("model.bin");
+		corpus.model(3, TEXTS[0]).save(path.toString());
+		NgramLanguageModel larger = corpus.model(3, TEXTS);
+		larger.save(path.toString());
+
+		assertEquals(larger.getNodeCount(), NgramModelFile.open(path).getNodeCount());
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory)) {
+			stream.forEach(files::add);
+		}
+		assertEquals(1, files.size());
+	}
+
+	@Test
+	public void rejectsCorruptHeaders() throws IOException {
+		Path path = this.directory.resolve("model.bin");
+		new TestCorpus(new Vocabulary()).model(3, TEXTS).save(path.toString());
+		byte[] bytes = Files.readAllBytes(path);
+
+		assertRejected(bytes, 8, 1); // n
+		assertRejected(bytes, 12, -1); // 語彙数
+		assertRejected(bytes, 16, Integer.MAX_VALUE); // キー数 (intでは桁あふれする大きさ)
+		assertRejected(bytes, 20, -5); // ノード数
+		int nodeCount = ByteBuffer.wrap(bytes).getInt(20);
+		assertRejected(bytes, bytes.length - nodeCount * 8, 1000); // 後続ノードのID
+		assertRejected(bytes, bytes.length - 4, 0); // 出現回数
+		try {
+			NgramModelFile.wrap(ByteBuffer.wrap(bytes, 0, bytes.length - 3).slice());
+			fail("truncated file accepted");
+		} catch (IOException e) {
+			// 期待どおり
+		}
+	}
+
+	private static void assertRejected(byte[] bytes, int position, int value) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.clone());
+		buffer.putInt(position, value);
+		try {
+			NgramModelFile.wrap(buffer);
+			fail("accepted " + value + " at " + position);
+		} catch (IOException e) {
+			// 期待どおり
+		}
+	}
+
+	/**
+	 * expectedの全てのキーについて、actualでも同じ表層形・出現回数の後続ノードが同じ順に並ぶこと
+	 */
+	private static void assertSameSuccessors(NgramLanguageModel expected, NgramModel actual) {
+		Vocabulary from = expected.getVocabulary();
+		Vocabulary to = actual.getVocabulary();
+		int[] count = new int[1];
+		expected.forEachEntry((keyIds, nodes) -> {
+			int[] ids = new int[keyIds.length + 1];
+			for (int i = 0; i < keyIds.length; i++) {
+				SudachiToken token = from.get(keyIds[i]);
+				ids[i + 1] = token == null ? Vocabulary.BOUNDARY
+						: to.intern(token.surface(), token.partOfSpeech()).getId();
+			}
+			List<SudachiNode> found = actual.findNextCandidates(new SudachiNode(ids, to));
+			assertEquals(TestCorpus.surfaces(nodes), TestCorpus.surfaces(found));
+			count[0]++;
+		});
+		assertEquals(expected.getKeyCount(), count[0]);
+	}
+}
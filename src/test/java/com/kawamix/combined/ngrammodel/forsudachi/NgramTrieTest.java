@@ -0,0 +1,102 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class NgramTrieTest {
+
+	@Test
+	public void getFindsKeysAndNodesAtAnOffset() {
+		NgramTrie trie = new NgramTrie(3);
+		NgramEntry entry = entry(3, 5);
+		SudachiNode node = new SudachiNode(new int[] { 3, 5, 7 }, new Vocabulary());
+		assertNull(trie.putEntry(entry));
+		trie.putNode(node);
+		assertSame(entry, trie.getEntry(new int[] { 9, 3, 5, 9 }, 1));
+		assertSame(node, trie.getNode(new int[] { 9, 3, 5, 7 }, 1));
+		assertNull(trie.getEntry(new int[] { 5, 3 }, 0));
+		assertNull(trie.getNode(new int[] { 3, 5, 8 }, 0));
+	}
+
+	@Test
+	public void putEntryReplacesTheSameKey() {
+		NgramTrie trie = new NgramTrie(3);
+		NgramEntry first = entry(1, 2);
+		NgramEntry second = entry(1, 2);
+		trie.putEntry(first);
+		assertSame(first, trie.putEntry(second));
+		assertSame(second, trie.getEntry(new int[] { 1, 2 }, 0));
+		assertEquals(1, trie.getEntryCount());
+	}
+
+	@Test
+	public void sharesContextsWithTheSameSuffix() {
+		NgramTrie trie = new NgramTrie(3);
+		trie.putEntry(entry(1, 9));
+		trie.putEntry(entry(2, 9));
+		trie.putEntry(entry(3, 8));
+		// 9, 1→9, 2→9, 8, 3→8
+		assertEquals(5, trie.getContextCount());
+	}
+
+	@Test
+	public void keepsEveryValueAcrossResizes() {
+		NgramTrie trie = new NgramTrie(3);
+		Vocabulary vocabulary = new Vocabulary();
+		for (int i = 0; i < 10000; i++) {
+			trie.putEntry(entry(i % 7, i / 7));
+			trie.putNode(new SudachiNode(new int[] { i % 7, i / 7, i }, vocabulary));
+		}
+		assertEquals(10000, trie.getEntryCount());
+		assertEquals(10000, trie.getNodeCount());
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, trie.getNode(new int[] { i % 7, i / 7, i }, 0).getLastId());
+			assertEquals(i / 7, trie.getEntry(new int[] { i % 7, i / 7 }, 0).getKeyIds()[1]);
+		}
+		Set<Integer> seen = new HashSet<>();
+		trie.forEachEntry(entry -> seen.add(entry.getKeyIds()[0] + entry.getKeyIds()[1] * 7));
+		assertEquals(10000, seen.size());
+	}
+
+	@Test
+	public void backoffVisitsOtherKeysWithTheSameSuffixInOrder() {
+		NgramTrie trie = new NgramTrie(3);
+		trie.putEntry(entry(1, 9));
+		trie.putEntry(entry(2, 9));
+		trie.putEntry(entry(3, 8));
+		trie.putEntry(entry(4, 9));
+		List<Integer> firsts = new ArrayList<>();
+		trie.forEachBackoffEntry(new int[] { 2, 9 }, 0, 1, 10, entry -> firsts.add(entry.getKeyIds()[0]));
+		assertEquals("[1, 4]", firsts.toString());
+		firsts.clear();
+		trie.forEachBackoffEntry(new int[] { 2, 9 }, 0, 1, 1, entry -> firsts.add(entry.getKeyIds()[0]));
+		assertEquals("[1]", firsts.toString());
+	}
+
+	@Test
+	public void modelBacksOffToSuccessorsOfTheShorterContext() {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		NgramLanguageModel model = corpus.model(3, "A B C", "X B D", "X B D", "Y B C");
+		SudachiNode node = corpus.node("", "A", "B");
+		// A B の後続は C だけ。B で終わる他のキー (X B, Y B) の後続 D, C を A B に続くノードにする
+		List<SudachiNode> candidates = model.findBackoffCandidates(node, n -> true);
+		assertEquals("D:2 C:1", TestCorpus.surfaces(candidates));
+		assertEquals(corpus.node("A", "B", "D"), candidates.get(0));
+		assertEquals("$:2", TestCorpus.surfaces(model.findNextCandidates(candidates.get(0)))); // B D のキーで続けられる
+		// 条件を満たすものがなければ空
+		assertTrue(model.findBackoffCandidates(node, n -> n.getLastId() == corpus.id("Z")).isEmpty());
+	}
+
+	private static NgramEntry entry(int... keyIds) {
+		return new NgramEntry(new SudachiNodeKey(keyIds, 0, keyIds.length, new Vocabulary()));
+	}
+}
@@ -0,0 +1,85 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapNgramModelTest {
+	private static final String[] TEXTS = { "私 は/p 犬 が/p 好き", "私 は/p 猫 が/p 好き", "今日 は/p 晴れ",
+			"犬 が/p 走る/v" };
+	private static final String[] DELTA = { "私 は/p 鳥 が/p 好き", "今日 は/p 雨", "私 は/p 犬 が/p 好き" };
+
+	private Path path;
+
+	@Before
+	public void setUp() throws IOException {
+		this.path = Files.createTempFile("offheap", ".bin");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(this.path);
+	}
+
+	@Test
+	public void answersLikeTheHeapModel() throws IOException {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		NgramLanguageModel heap = corpus.model(3, TEXTS);
+		heap.save(this.path.toString());
+		OffHeapNgramModel mapped = OffHeapNgramModel.open(this.path, corpus.getVocabulary());
+		assertSameModel(heap, mapped);
+	}
+
+	@Test
+	public void appendMergesLikeTheHeapModel() throws IOException {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		NgramLanguageModel heap = corpus.model(3, TEXTS);
+		heap.save(this.path.toString());
+		OffHeapNgramModel mapped = OffHeapNgramModel.open(this.path, corpus.getVocabulary());
+
+		heap.append(corpus.model(3, DELTA));
+		mapped.append(corpus.model(3, DELTA));
+		assertSameModel(heap, mapped);
+		assertEquals("犬:2 猫:1 鳥:1",
+				TestCorpus.surfaces(mapped.findNextCandidates(corpus.node("", "私", "は/p"))));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsScopedVocabularies() throws IOException {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		corpus.model(3, TEXTS).save(this.path.toString());
+		OffHeapNgramModel.open(this.path, corpus.getVocabulary().createScope());
+	}
+
+	private static void assertSameModel(NgramLanguageModel heap, OffHeapNgramModel mapped) {
+		heap.forEachEntry((keyIds, nodes) -> {
+			int[] ids = new int[keyIds.length + 1];
+			System.arraycopy(keyIds, 0, ids, 1, keyIds.length);
+			SudachiNode node = new SudachiNode(ids, heap.getVocabulary());
+			assertEquals(TestCorpus.surfaces(nodes), TestCorpus.surfaces(mapped.findNextCandidates(node)));
+			for (SudachiNode sibling : nodes) {
+				assertEquals(TestCorpus.surfaces(heap.findSiblingCandidates(sibling)),
+						TestCorpus.surfaces(mapped.findSiblingCandidates(sibling)));
+			}
+		});
+		for (int min = 0; min < 3; min++)
+			assertEquals(heads(heap.findHead(min)), heads(mapped.findHead(min)));
+		for (String surface : new String[] { "犬", "好き", "鳥", "雨", "は" })
+			assertEquals(surface, heap.getFreq(surface), mapped.getFreq(surface));
+	}
+
+	private static String heads(List<Entry<SudachiNodeKey, List<SudachiNode>>> heads) {
+		StringBuilder sb = new StringBuilder();
+		for (Entry<SudachiNodeKey, List<SudachiNode>> head : heads)
+			sb.append(head.getKey()).append('=').append(TestCorpus.surfaces(head.getValue())).append(';');
+		return sb.toString();
+	}
+}
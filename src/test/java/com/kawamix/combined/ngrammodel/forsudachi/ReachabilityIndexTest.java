@@ -0,0 +1,148 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ReachabilityIndexTest {
+
+	@Test
+	public void keepsTheBestPathPerKeyAndTarget() {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		NgramLanguageModel model = corpus.model(3, "A B C D", "A B C D", "A B X D");
+		ReachabilityIndex index = new ReachabilityIndex(model, 3);
+		assertEquals(3, index.getMaxLength());
+
+		// A B → C → D (出現回数2) と A B → X → D (1) のうち、スコアの高い前者
+		int slot = index.find(ids(corpus, "A", "B", "D"));
+		assertTrue(slot >= 0);
+		assertEquals(2 * 0.5 + (2 + 2) / 2.0, index.getScore(slot), 1e-9);
+		List<SudachiNode> path = index.getPath(slot);
+		assertEquals("C:2 D:2", TestCorpus.surfaces(path));
+		assertEquals(corpus.node("A", "B", "C"), path.get(0));
+		assertEquals(corpus.node("B", "C", "D"), path.get(1));
+
+		// 3個のノードで文末まで
+		slot = index.find(new int[] { corpus.id("A"), corpus.id("B"), Vocabulary.BOUNDARY });
+		assertEquals("C:2 D:2 $:2", TestCorpus.surfaces(index.getPath(slot)));
+
+		// 直接の後続ノード (経路長1) と、たどれない組は入らない
+		assertEquals(-1, index.find(ids(corpus, "A", "B", "C")));
+		assertEquals(-1, index.find(ids(corpus, "C", "D", "A")));
+	}
+
+	@Test
+	public void followsOnlyTheMostFrequentSuccessors() {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		int fanOut = ReachabilityIndex.MAX_FANOUT + 8;
+		List<String> texts = new ArrayList<>();
+		for (int i = 0; i < fanOut; i++)
+			texts.add("K a w" + i);
+		for (int i = fanOut - 8; i < fanOut; i++)
+			texts.add("K a w" + i); // 後に登録した8語の方が多く出る
+		NgramLanguageModel model = corpus.model(3, texts.toArray(new String[0]));
+		ReachabilityIndex index = new ReachabilityIndex(model, 3);
+
+		int[] probe = { Vocabulary.BOUNDARY, corpus.id("K"), 0 };
+		int reachable = 0;
+		for (int i = 0; i < fanOut; i++) {
+			probe[2] = corpus.id("w" + i);
+			if (index.find(probe) >= 0)
+				reachable++;
+		}
+		assertEquals(ReachabilityIndex.MAX_FANOUT, reachable);
+		probe[2] = corpus.id("w" + (fanOut - 1));
+		assertTrue(index.find(probe) >= 0);
+		probe[2] = corpus.id("w" + (fanOut - 9)); // 出現回数1で、上位の枠に入らない
+		assertEquals(-1, index.find(probe));
+		assertFalse(index.isFull());
+	}
+
+	@Test
+	public void evictsTheLowestScoresWhenFull() {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		List<String> texts = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			for (int j = 0; j <= i % 5; j++)
+				texts.add("A B c" + i + " d" + i);
+		}
+		NgramLanguageModel model = corpus.model(3, texts.toArray(new String[0]));
+		ReachabilityIndex all = new ReachabilityIndex(model, 3);
+		ReachabilityIndex capped = new ReachabilityIndex(model, 3, 16);
+		assertFalse(all.isFull());
+		assertTrue(capped.isFull());
+		assertTrue(capped.size() <= 16);
+
+		// 残るのは、下限より最良のスコアが高い組のすべて (経路も上限なしの索引と同じ)
+		List<int[]> keys = new ArrayList<>();
+		model.forEachEntry((keyIds, nodes) -> keys.add(keyIds.clone()));
+		int kept = 0;
+		for (int[] key : keys) {
+			for (int target = 0; target < corpus.getVocabulary().size(); target++) {
+				int[] probe = { key[0], key[1], target };
+				int expected = all.find(probe);
+				int slot = capped.find(probe);
+				if (expected < 0 || all.getScore(expected) <= capped.getMinScore()) {
+					assertEquals(-1, slot);
+					continue;
+				}
+				kept++;
+				assertEquals(all.getScore(expected), capped.getScore(slot), 1e-9);
+				assertEquals(TestCorpus.surfaces(all.getPath(expected)), TestCorpus.surfaces(capped.getPath(slot)));
+			}
+		}
+		assertEquals(capped.size(), kept);
+		assertTrue(kept > 0);
+	}
+
+	@Test
+	public void preparesTheIndexInTheBackground() throws InterruptedException {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		NgramLanguageModel model = corpus.model(3, "A B C D", "A B C D");
+		model.prepareReachabilityIndex(3);
+		ReachabilityIndex index = null;
+		for (int i = 0; i < 500 && index == null; i++) {
+			index = model.getReachabilityIndex(3); // 作成中はnull (呼び出したスレッドでは作らない)
+			if (index == null)
+				Thread.sleep(10);
+		}
+		assertTrue(index.find(ids(corpus, "A", "B", "D")) >= 0);
+		model.prepareReachabilityIndex(3); // 変わっていなければ作り直さない
+		assertSame(index, model.getReachabilityIndex(3));
+	}
+
+	@Test
+	public void appendServesTheOldIndexWhileRebuilding() throws InterruptedException {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		NgramLanguageModel model = corpus.model(3, "A B C D", "A B C D");
+		ReachabilityIndex before = model.getReachabilityIndex(3);
+		assertSame(before, model.getReachabilityIndex(3));
+
+		model.append(corpus.model(3, "A B Y D", "A B Y D", "A B Y D"));
+		assertSame(before, model.getReachabilityIndex(3));
+		ReachabilityIndex after = before;
+		for (int i = 0; i < 500 && after == before; i++) {
+			Thread.sleep(10);
+			after = model.getReachabilityIndex(3);
+		}
+		assertNotSame(before, after);
+		int slot = after.find(ids(corpus, "A", "B", "D"));
+		assertEquals("Y:3 D:3", TestCorpus.surfaces(after.getPath(slot)));
+		// 古い索引は作った時点の経路のまま
+		assertEquals("C:2 D:2", TestCorpus.surfaces(before.getPath(before.find(ids(corpus, "A", "B", "D")))));
+	}
+
+	private static int[] ids(TestCorpus corpus, String... words) {
+		int[] ids = new int[words.length];
+		for (int i = 0; i < words.length; i++)
+			ids[i] = corpus.id(words[i]);
+		return ids;
+	}
+}
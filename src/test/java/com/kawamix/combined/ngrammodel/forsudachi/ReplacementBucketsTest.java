@@ -0,0 +1,54 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ReplacementBucketsTest {
+
+	@Test
+	public void groupsByPartOfSpeechInRegistrationOrder() {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		SudachiNode dog = corpus.node("私", "は/p", "犬");
+		SudachiNode particle = corpus.node("私", "は/p", "が/p");
+		SudachiNode run = corpus.node("私", "は/p", "走る/v");
+		SudachiNode cat = corpus.node("私", "は/p", "猫");
+		SudachiNode eos = corpus.node("私", "は/p", "");
+		List<SudachiNode> nodes = Arrays.asList(dog, particle, run, cat, eos);
+		ReplacementBuckets buckets = new ReplacementBuckets(nodes);
+
+		assertArrayEquals(new SudachiNode[] { dog, cat }, buckets.get(dog.getLastToken().getPosClass()));
+		assertArrayEquals(new SudachiNode[] { run }, buckets.get(run.getLastToken().getPosClass()));
+		// 助詞と文末は置換の対象にしない
+		assertNull(buckets.get(particle.getLastToken().getPosClass()));
+	}
+
+	@Test
+	public void modelsReturnTheSameBucketsOnHeapAndMapped() throws IOException {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		NgramLanguageModel model = corpus.model(3, "私 は/p 犬 が/p 好き", "私 は/p 猫 です", "私 は/p 走る/v",
+				"私 は/p が/p");
+		Path path = Files.createTempFile("replacement", ".bin");
+		try {
+			model.save(path.toString());
+			OffHeapNgramModel mapped = OffHeapNgramModel.open(path, corpus.getVocabulary());
+			SudachiNode key = corpus.node("", "私", "は/p");
+			int noun = corpus.token("犬").getPosClass();
+			SudachiNode[] expected = { corpus.node("私", "は/p", "犬"), corpus.node("私", "は/p", "猫") };
+			assertArrayEquals(expected, model.findNextReplacements(key, noun));
+			assertArrayEquals(expected, mapped.findNextReplacements(key, noun));
+			int particle = corpus.token("が/p").getPosClass();
+			assertNull(model.findNextReplacements(key, particle));
+			assertNull(mapped.findNextReplacements(key, particle));
+		} finally {
+			Files.delete(path);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+public class SuccessorSamplerTest {
+	private static final int SAMPLES = 200000;
+
+	/**
+	 * 出現回数 1, 4, 2, 3 の後続ノード (登録順)
+	 */
+	private static List<SudachiNode> nodes(TestCorpus corpus) {
+		List<SudachiNode> nodes = new ArrayList<>();
+		int[] freqs = { 1, 4, 2, 3 };
+		for (int i = 0; i < freqs.length; i++) {
+			SudachiNode node = corpus.node("私", "は/p", "語" + i);
+			node.addFreq(freqs[i] - 1);
+			nodes.add(node);
+		}
+		return nodes;
+	}
+
+	@Test
+	public void sortsByFrequencyKeepingRegistrationOrderForTies() {
+		TestCorpus corpus = new TestCorpus(new Vocabulary());
+		List<SudachiNode> nodes = nodes(corpus);
+		SudachiNode tie = corpus.node("私", "は/p", "語4");
+		tie.addFreq(2); // 3回 (語3と同数)
+		nodes.add(tie);
+		SuccessorSampler sampler = new SuccessorSampler(nodes);
+		assertEquals(5, sampler.size());
+		assertEquals(Arrays.asList(nodes.get(1), nodes.get(3), tie, nodes.get(2), nodes.get(0)),
+				Arrays.asList(sampler.getSortedByFreq()));
+	}
+
+	@Test
+	public void aliasTableSamplesInProportionToFrequency() {
+		List<SudachiNode> nodes = nodes(new TestCorpus(new Vocabulary()));
+		SuccessorSampler sampler = new SuccessorSampler(nodes);
+		int[] counts = count(nodes, sampler, SamplingPolicy.FREQUENCY);
+		for (int i = 0; i < nodes.size(); i++)
+			assertEquals(nodes.get(i).getFreq() / 10.0, (double) counts[i] / SAMPLES, 0.01);
+	}
+
+	@Test
+	public void topKSamplesOnlyTheMostFrequent() {
+		List<SudachiNode> nodes = nodes(new TestCorpus(new Vocabulary()));
+		SuccessorSampler sampler = new SuccessorSampler(nodes);
+		int[] counts = new int[nodes.size()];
+		SplittableRandom random = new SplittableRandom(1L);
+		for (int i = 0; i < SAMPLES; i++)
+			counts[nodes.indexOf(sampler.sample(SamplingPolicy.TOP_K, 2, random))]++;
+		assertEquals(0, counts[0]);
+		assertEquals(0, counts[2]);
+		assertEquals(0.5, (double) counts[1] / SAMPLES, 0.01);
+		assertEquals(0.5, (double) counts[3] / SAMPLES, 0.01);
+	}
+
+	@Test
+	public void uniformSamplesEveryNodeEqually() {
+		List<SudachiNode> nodes = nodes(new TestCorpus(new Vocabulary()));
+		int[] counts = count(nodes, new SuccessorSampler(nodes), SamplingPolicy.UNIFORM);
+		for (int count : counts)
+			assertEquals(0.25, (double) count / SAMPLES, 0.01);
+	}
+
+	@Test
+	public void sampleWithConditionSkipsRejectedNodes() {
+		List<SudachiNode> nodes = nodes(new TestCorpus(new Vocabulary()));
+		SuccessorSampler sampler = new SuccessorSampler(nodes);
+		SplittableRandom random = new SplittableRandom(2L);
+		SudachiNode rare = nodes.get(0);
+		for (SamplingPolicy policy : SamplingPolicy.values()) {
+			for (int i = 0; i < 1000; i++)
+				assertSame(rare, sampler.sample(policy, nodes.size(), random, node -> node == rare));
+			assertNull(sampler.sample(policy, nodes.size(), random, node -> false));
+		}
+		// 条件付きでも出現回数に比例する (1回のノードを除くと 4:2:3)
+		int[] counts = new int[nodes.size()];
+		for (int i = 0; i < SAMPLES; i++)
+			counts[nodes.indexOf(sampler.sample(SamplingPolicy.FREQUENCY, 0, random, node -> node != rare))]++;
+		assertEquals(0, counts[0]);
+		assertEquals(4.0 / 9.0, (double) counts[1] / SAMPLES, 0.01);
+	}
+
+	private static int[] count(List<SudachiNode> nodes, SuccessorSampler sampler, SamplingPolicy policy) {
+		int[] counts = new int[nodes.size()];
+		SplittableRandom random = new SplittableRandom(1L);
+		for (int i = 0; i < SAMPLES; i++)
+			counts[nodes.indexOf(sampler.sample(policy, nodes.size(), random))]++;
+		return counts;
+	}
+}
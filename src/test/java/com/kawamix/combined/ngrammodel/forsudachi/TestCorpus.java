@@ -0,0 +1,82 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * テスト用の形態素解析済みの文 (Sudachiの辞書を使わずに語彙表へ直接internする)
+ * 単語の末尾が "/p" なら助詞、"/v" なら動詞、それ以外は名詞として扱う。
+ * @author kawami
+ *
+ */
+final class TestCorpus {
+	static final List<String> NOUN = Arrays.asList("名詞", "普通名詞", "一般", "*", "*", "*");
+	static final List<String> VERB = Arrays.asList("動詞", "一般", "*", "*", "五段-ラ行", "終止形-一般");
+	static final List<String> PARTICLE = Arrays.asList("助詞", "格助詞", "*", "*", "*", "*");
+
+	private final Vocabulary vocabulary;
+
+	TestCorpus(Vocabulary vocabulary) {
+		this.vocabulary = vocabulary;
+	}
+
+	Vocabulary getVocabulary() {
+		return this.vocabulary;
+	}
+
+	SudachiToken token(String word) {
+		if (word.endsWith("/p"))
+			return this.vocabulary.intern(word.substring(0, word.length() - 2), PARTICLE);
+		if (word.endsWith("/v"))
+			return this.vocabulary.intern(word.substring(0, word.length() - 2), VERB);
+		return this.vocabulary.intern(word, NOUN);
+	}
+
+	int id(String word) {
+		return token(word).getId();
+	}
+
+	/**
+	 * @param text 空白区切りの単語列
+	 */
+	SudachiToken[] sentence(String text) {
+		String[] words = text.split(" ");
+		SudachiToken[] tokens = new SudachiToken[words.length];
+		for (int i = 0; i < words.length; i++)
+			tokens[i] = token(words[i]);
+		return tokens;
+	}
+
+	NgramLanguageModel model(int n, String... texts) {
+		List<SudachiToken[]> lines = new ArrayList<>();
+		for (String text : texts)
+			lines.add(sentence(text));
+		NgramLanguageModel model = new NgramLanguageModel(n, this.vocabulary);
+		model.loadTokenizedLines(lines);
+		return model;
+	}
+
+	/**
+	 * N個の単語 (空文字は文頭・文末) のノード
+	 */
+	SudachiNode node(String... words) {
+		int[] ids = new int[words.length];
+		for (int i = 0; i < words.length; i++)
+			ids[i] = words[i].isEmpty() ? Vocabulary.BOUNDARY : id(words[i]);
+		return new SudachiNode(ids, this.vocabulary);
+	}
+
+	static String surfaces(List<SudachiNode> nodes) {
+		if (nodes == null)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		for (SudachiNode node : nodes) {
+			if (sb.length() > 0)
+				sb.append(' ');
+			SudachiToken token = node.getLastToken();
+			sb.append(token == null ? "$" : token.surface()).append(':').append(node.getFreq());
+		}
+		return sb.toString();
+	}
+}
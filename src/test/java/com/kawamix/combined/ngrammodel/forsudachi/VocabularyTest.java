@@ -0,0 +1,91 @@
+package com.kawamix.combined.ngrammodel.forsudachi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class VocabularyTest {
+
+	@Test
+	public void internReturnsTheSameToken() {
+		Vocabulary vocabulary = new Vocabulary();
+		SudachiToken dog = vocabulary.intern("犬", TestCorpus.NOUN);
+		assertSame(dog, vocabulary.intern("犬", TestCorpus.NOUN));
+		assertEquals(1, dog.getId());
+		assertSame(dog, vocabulary.get(dog.getId()));
+		assertEquals("犬", vocabulary.surface(dog.getId()));
+		assertNull(vocabulary.get(Vocabulary.BOUNDARY));
+		assertEquals(2, vocabulary.size());
+	}
+
+	@Test
+	public void partOfSpeechIsPartOfTheKey() {
+		Vocabulary vocabulary = new Vocabulary();
+		SudachiToken noun = vocabulary.intern("走り", TestCorpus.NOUN);
+		SudachiToken verb = vocabulary.intern("走り", TestCorpus.VERB);
+		assertNotSame(noun, verb);
+		assertTrue(noun.getPosClass() != verb.getPosClass());
+		assertTrue(vocabulary.intern("が", TestCorpus.PARTICLE).isParticle());
+		assertFalse(noun.isParticle());
+	}
+
+	@Test
+	public void scopeSharesParentTokensAndKeepsNewOnesLocal() {
+		Vocabulary root = new Vocabulary();
+		SudachiToken dog = root.intern("犬", TestCorpus.NOUN);
+		Vocabulary scope = root.createScope();
+		assertTrue(scope.isScoped());
+		assertSame(root, scope.getRoot());
+
+		assertSame(dog, scope.intern("犬", TestCorpus.NOUN));
+		SudachiToken cat = scope.intern("猫", TestCorpus.NOUN);
+		assertTrue(cat.getId() >= Vocabulary.SCOPED_ID_BASE);
+		assertSame(cat, scope.get(cat.getId()));
+		assertSame(dog, scope.get(dog.getId()));
+		assertEquals(dog.getPosClass(), cat.getPosClass());
+
+		// 共有の語彙表は増えない
+		assertEquals(2, root.size());
+		assertEquals(3, scope.size());
+	}
+
+	@Test
+	public void resolveDoesNotRegister() {
+		Vocabulary root = new Vocabulary();
+		SudachiToken bird = root.resolve("鳥", TestCorpus.NOUN);
+		assertEquals(Vocabulary.UNREGISTERED, bird.getId());
+		assertEquals(1, root.size());
+
+		Vocabulary scope = root.createScope();
+		SudachiToken scoped = scope.intern(bird);
+		assertTrue(scoped.getId() >= Vocabulary.SCOPED_ID_BASE);
+		assertEquals(1, root.size());
+		SudachiToken registered = root.intern(bird);
+		assertEquals(1, registered.getId());
+		assertSame(registered, root.resolve("鳥", TestCorpus.NOUN));
+	}
+
+	@Test
+	public void scopedTokensAreInRegistrationOrder() {
+		Vocabulary root = new Vocabulary();
+		root.intern("犬", TestCorpus.NOUN);
+		Vocabulary scope = root.createScope();
+		scope.intern("猫", TestCorpus.NOUN);
+		scope.intern("犬", TestCorpus.NOUN); // 親にある語は含まない
+		scope.intern("鳥", TestCorpus.NOUN);
+		assertEquals(2, scope.getScopedTokens().size());
+		assertEquals("猫", scope.getScopedTokens().get(0).surface());
+		assertEquals("鳥", scope.getScopedTokens().get(1).surface());
+		assertEquals(Vocabulary.SCOPED_ID_BASE + 1, scope.getScopedTokens().get(1).getId());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void scopeCannotHaveChildren() {
+		new Vocabulary().createScope().createScope();
+	}
+}